@@ -0,0 +1,234 @@
+package clientserverdemo;
+
+import java.io.Serializable;
+
+/**
+ * Tracks outstanding (not yet acknowledged) message IDs of a single peer.
+ * Since message IDs increase monotonically, state is kept as a low-watermark
+ * (every ID below it is acknowledged) and a ring of bits covering the IDs
+ * from the low-watermark up to the highest added ID. Adding and acknowledging
+ * an ID are O(1), and memory is bounded by the maximum window size no matter
+ * how many messages have been sent
+ * @author Yasser Jaffal
+ */
+class AckWindow implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = Integer.getInteger(
+            "clientserverdemo.ackWindow", 1 << 16);
+    private long[] bits;
+    private int base;
+    private int limit;
+    private int count;
+    private long evicted;
+
+    /**
+     * Receives IDs that leave the window
+     */
+    interface Listener {
+
+        /**
+         * called for each ID that is acknowledged or dropped from the window
+         * @param id the released ID
+         */
+        void released(int id);
+    }
+
+    /**
+     * Constructor
+     */
+    public AckWindow() {
+        bits = new long[MIN_SIZE / 64];
+    }
+
+    /**
+     * marks the passed ID as outstanding. IDs are usually added in
+     * increasing order, but messages sent by several threads could be added
+     * slightly out of order, so an ID below the low-watermark moves it down
+     * as long as the window does not grow beyond its maximum size. If it
+     * would, the oldest outstanding IDs are dropped, reported to the listener
+     * and counted by getEvicted(), they were never acknowledged. An ID too
+     * old to fit is not added and is counted the same way
+     * @param id ID to add
+     * @param listener listener to notify about dropped IDs, could be null
+     * @return true if ID has been added
+     */
+    public boolean add(int id, Listener listener) {
+        if (count == 0) {
+            base = id;
+            limit = id;
+        } else if (id < base) {
+            grow(limit - id);
+            if (limit - id > capacity()) {
+                evicted++;
+                return false;
+            }
+            base = id;
+        }
+        if (id - base >= capacity()) {
+            grow(id - base + 1);
+            if (id - base >= capacity()) {
+                evicted += acknowledgeRange(base, id - capacity(), listener);
+                if (count == 0) {
+                    base = id;
+                    limit = id;
+                }
+            }
+        }
+        if (isSet(id)) {
+            return false;
+        }
+        set(id);
+        count++;
+        if (id >= limit) {
+            limit = id + 1;
+        }
+        return true;
+    }
+
+    /**
+     * acknowledges a single ID
+     * @param id acknowledged ID
+     * @return true if ID was outstanding
+     */
+    public boolean acknowledge(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        clear(id);
+        count--;
+        advance();
+        return true;
+    }
+
+    /**
+     * acknowledges every outstanding ID in the passed inclusive range, a
+     * cumulative acknowledgement is a range starting at the low-watermark
+     * @param from first ID of the range
+     * @param to last ID of the range
+     * @param listener listener to notify about each acknowledged ID, could be null
+     * @return number of acknowledged IDs
+     */
+    public int acknowledgeRange(int from, int to, Listener listener) {
+        if (count == 0) {
+            return 0;
+        }
+        int first = Math.max(from, base);
+        int last = Math.min(to, limit - 1);
+        int acked = 0;
+        for (int id = first; id <= last; id++) {
+            int word = index(id) >>> 6;
+            if (bits[word] == 0 && (id & 63) == 0 && last - id >= 63) {
+                id += 63;
+                continue;
+            }
+            if (isSet(id)) {
+                clear(id);
+                count--;
+                acked++;
+                if (listener != null) {
+                    listener.released(id);
+                }
+            }
+        }
+        advance();
+        return acked;
+    }
+
+    /**
+     * @param id ID to check
+     * @return true if ID is outstanding
+     */
+    public boolean contains(int id) {
+        return count > 0 && id >= base && id < limit && isSet(id);
+    }
+
+    /**
+     * @return number of outstanding IDs
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of outstanding IDs dropped so far because the window
+     * reached its maximum size
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return outstanding IDs in increasing order
+     */
+    public int[] toArray() {
+        int[] result = new int[count];
+        int n = 0;
+        for (int id = base; n < count && id < limit; id++) {
+            if (isSet(id)) {
+                result[n++] = id;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * utility method to move the low-watermark to the lowest outstanding ID
+     */
+    private void advance() {
+        if (count == 0) {
+            base = limit;
+            return;
+        }
+        while (!isSet(base)) {
+            base++;
+        }
+    }
+
+    /**
+     * utility method to enlarge the ring, up to its maximum size, so it
+     * covers the passed number of IDs starting at the low-watermark
+     */
+    private void grow(int needed) {
+        int size = capacity();
+        while (size < needed && size < MAX_SIZE) {
+            size *= 2;
+        }
+        if (size == capacity()) {
+            return;
+        }
+        long[] old = bits;
+        int oldMask = capacity() - 1;
+        bits = new long[size / 64];
+        for (int id = base; id < limit; id++) {
+            int i = id & oldMask;
+            if ((old[i >>> 6] & (1L << i)) != 0) {
+                set(id);
+            }
+        }
+    }
+
+    private int capacity() {
+        return bits.length * 64;
+    }
+
+    private int index(int id) {
+        return id & (capacity() - 1);
+    }
+
+    private boolean isSet(int id) {
+        int i = index(id);
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private void set(int id) {
+        int i = index(id);
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private void clear(int id) {
+        int i = index(id);
+        bits[i >>> 6] &= ~(1L << i);
+    }
+}
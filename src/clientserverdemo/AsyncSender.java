@@ -0,0 +1,242 @@
+package clientserverdemo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of replies (acknowledgements and command replies) that are sent
+ * asynchronously, so the receiving path never blocks on sending. Replies
+ * queued within the coalescing delay are sent together as one batch. For
+ * every source the highest ID up to which all its messages were received is
+ * tracked, and once something was received from a source within the delay
+ * it is sent a cumulative acknowledgement (see CumulativeAck) of that whole
+ * range plus a bitmap of the IDs received after it, so an acknowledgement
+ * lost on the way is covered by the next one.
+ * Senders of all clients share one executor (see Threads) whose size is read
+ * from the system property <B>clientserverdemo.senderThreads</B>; the coalescing delay is read from
+ * <B>clientserverdemo.ackDelay</B> (milliseconds, 0 sends immediately)
+ * @author Yasser Jaffal
+ */
+public class AsyncSender implements Runnable {
+
+    public static final long COALESCING_DELAY =
+            Long.getLong("clientserverdemo.ackDelay", 5);
+    private static ScheduledExecutorService executor;
+    private final SendingClient client;
+    private final HashMap<String, SourceAcks> received =
+            new HashMap<String, SourceAcks>();
+    private final ConcurrentLinkedQueue<Message> queue =
+            new ConcurrentLinkedQueue<Message>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean active = true;
+
+    /**
+     * Constructor
+     * @param client client used to send queued messages
+     */
+    public AsyncSender(SendingClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @return executor shared by senders of all clients in this process
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Threads.newScheduledExecutor("async-sender",
+                    Integer.getInteger("clientserverdemo.senderThreads", 1));
+        }
+        return executor;
+    }
+
+    /**
+     * queues a message to be sent, never blocks
+     * @param msg message to send
+     */
+    public void send(Message msg) {
+        if (!active) {
+            return;
+        }
+        queue.add(msg);
+        schedule();
+    }
+
+    /**
+     * records a received message to be acknowledged with the next batch,
+     * never blocks
+     * @param source name of the client that sent the message
+     * @param id ID of the received message
+     */
+    public void acknowledge(String source, int id) {
+        if (!active) {
+            return;
+        }
+        synchronized (this) {
+            SourceAcks acks = received.get(source);
+            if (acks == null) {
+                acks = new SourceAcks();
+                received.put(source, acks);
+            }
+            acks.add(id);
+        }
+        schedule();
+    }
+
+    /**
+     * utility method to schedule sending the next batch
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            getExecutor().schedule(this, COALESCING_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * stops sending, queued messages are discarded
+     */
+    public void stop() {
+        active = false;
+        queue.clear();
+    }
+
+    /**
+     * sends all queued messages as one batch
+     */
+    public void run() {
+        scheduled.set(false);
+        ArrayList<Message> batch = new ArrayList<Message>();
+        synchronized (this) {
+            for (Map.Entry<String, SourceAcks> entry : received.entrySet()) {
+                entry.getValue().flush(client.getName(), entry.getKey(), batch);
+            }
+        }
+        Message msg;
+        while ((msg = queue.poll()) != null) {
+            batch.add(msg);
+        }
+        for (Message m : batch) {
+            if (!active) {
+                return;
+            }
+            try {
+                client.sendMessage(m);
+            } catch (IOException err) {
+                err.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Private class to track IDs received from a single source: every ID
+     * from low up to contiguous was received, bit i of above stands for ID
+     * contiguous + 1 + i, and IDs received below low are kept in older to be
+     * acknowledged once. A gap longer than the duplicate filter's window is
+     * given up by starting a new range after it, since the missing IDs must
+     * never be acknowledged
+     */
+    private static class SourceAcks {
+
+        private static final int MAX_GAP = DuplicateFilter.WINDOW;
+        private int low, contiguous;
+        private boolean started, changed;
+        private BitSet above = new BitSet();
+        private final IdBatch older = new IdBatch();
+
+        public void add(int id) {
+            changed = true;
+            if (!started || id - contiguous > MAX_GAP || low - id > MAX_GAP) {
+                // first ID, a gap that will not be filled, or a restarted source
+                started = true;
+                low = id;
+                contiguous = id;
+                above.clear();
+            } else if (id - low < 0) {
+                if (id == low - 1) {
+                    low = id;
+                } else {
+                    older.add(id);
+                }
+            } else if (id - contiguous > 0) {
+                above.set(id - contiguous - 1);
+                int run = above.nextClearBit(0);
+                if (run > 0) {
+                    contiguous += run;
+                    if (run == above.length()) {
+                        above.clear();
+                    } else {
+                        above = above.get(run, above.length());
+                    }
+                }
+            }
+        }
+
+        /**
+         * adds acknowledgements of this source's messages to the batch if
+         * anything was received since the last flush
+         */
+        public void flush(String name, String source, ArrayList<Message> batch) {
+            if (!changed) {
+                return;
+            }
+            changed = false;
+            long now = Clock.millis();
+            long bitmap = 0;
+            int i = above.nextSetBit(1);
+            for (; i >= 1 && i <= CumulativeAck.BITMAP_SIZE; i = above.nextSetBit(i + 1)) {
+                bitmap |= 1L << (i - 1);
+            }
+            batch.add(CumulativeAck.create(name, source, low, contiguous,
+                    bitmap, now));
+            IdBatch rest = new IdBatch();
+            for (; i >= 0; i = above.nextSetBit(i + 1)) {
+                rest.add(contiguous + 1 + i);
+            }
+            for (int[] ids : new int[][]{rest.toSortedArray(), older.toSortedArray()}) {
+                for (Message ack : CumulativeAck.create(name, source, ids)) {
+                    batch.add(ack);
+                }
+            }
+            older.clear();
+        }
+    }
+
+    /**
+     * Private class to collect IDs of messages received from a single source
+     */
+    private static class IdBatch {
+
+        private int[] ids = new int[16];
+        private int size;
+
+        public void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * @return collected IDs in increasing order without duplicates
+         */
+        public int[] toSortedArray() {
+            Arrays.sort(ids, 0, size);
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (count == 0 || ids[i] != ids[count - 1]) {
+                    ids[count++] = ids[i];
+                }
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+}
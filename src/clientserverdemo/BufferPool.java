@@ -0,0 +1,119 @@
+package clientserverdemo;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct byte buffers used by the receiving paths, so that receiving a
+ * datagram does not allocate a new buffer once the pool is warmed up (decoding
+ * still allocates the received Message and its strings). The pool counts
+ * buffer allocations and received messages to show how many buffers the
+ * receive path allocates per message, the shared pool reports them to Metrics
+ * as bufferPool.bufferAllocations, bufferPool.received, bufferPool.idle and
+ * bufferPool.bufferAllocationsPerMillion (buffer allocations per million
+ * messages)
+ * @author Yasser Jaffal
+ */
+public class BufferPool {
+
+    private static BufferPool shared;
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param bufferSize size of each buffer in bytes
+     * @param capacity maximum number of idle buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+    }
+
+    /**
+     * @return the pool shared by all receivers of this process
+     */
+    public static synchronized BufferPool getShared() {
+        if (shared == null) {
+            shared = new BufferPool(IncomingServer.BUFFER_SIZE,
+                    Integer.getInteger("clientserverdemo.poolSize", 1024));
+            final BufferPool pool = shared;
+            Metrics.addSource(new Metrics.Source() {
+
+                public void report(Map<String, Long> values) {
+                    values.put("bufferPool.bufferAllocations",
+                            pool.getBufferAllocationCount());
+                    values.put("bufferPool.received", pool.getReceivedCount());
+                    values.put("bufferPool.idle", (long) pool.free.size());
+                    values.put("bufferPool.bufferAllocationsPerMillion",
+                            Math.round(pool.getBufferAllocationsPerMessage() * 1e6));
+                }
+            });
+        }
+        return shared;
+    }
+
+    /**
+     * takes a cleared buffer from the pool, allocating a new one only if
+     * the pool is empty
+     * @return buffer ready to receive into
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * returns a buffer to the pool, buffers are dropped if the pool is full
+     * @param buffer buffer that is no longer used
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    /**
+     * records that a datagram has been received into a pooled buffer
+     */
+    public void messageReceived() {
+        received.incrementAndGet();
+    }
+
+    /**
+     * @return size of each pooled buffer in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers allocated since the pool was created
+     */
+    public long getBufferAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of datagrams received into pooled buffers
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return average number of buffer allocations per received message,
+     * approaches zero in steady state
+     */
+    public double getBufferAllocationsPerMessage() {
+        long count = received.get();
+        return count == 0 ? 0 : (double) allocations.get() / count;
+    }
+}
@@ -0,0 +1,516 @@
+package clientserverdemo;
+
+import java.io.*;
+import java.net.DatagramSocket;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Headless messaging engine of a single client: it owns the client's servers,
+ * sending and receiving clients, missed messages, retransmission and journal,
+ * and needs no GUI. Received messages and log lines are passed to a Listener
+ * (ClientManager is the GUI listener), engines could also be created directly
+ * by programs that run many clients in one process. When the system property
+ * <B>clientserverdemo.sharedTransport</B> is set the engine has no servers of
+ * its own and is registered with the SharedTransport of its group instead.
+ * While started, the engine reports its pending messages, the backlog of
+ * every peer and the mapped bytes in use by sent messages to Metrics
+ * @author Yasser Jaffal
+ */
+public class ClientEngine {
+
+    private String name;
+    private OutgoingServer outgoing;
+    private IncomingServer incoming;
+    private SendingClient client;
+    private ReceivingClient rClient;
+    MessageManager mManager;
+    private RetransmissionScheduler retransmission;
+    private AsyncSender replies;
+    private Journal journal;
+    private SharedTransport transport;
+    private final ConcurrentLinkedQueue<Message> inbox =
+            new ConcurrentLinkedQueue<Message>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Message> controlInbox =
+            new ConcurrentLinkedQueue<Message>();
+    private final AtomicInteger controlQueued = new AtomicInteger();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private Runnable dispatchTask;
+    private Metrics.Source backlog;
+    private static final LongAdder DATA = Metrics.counter("engine.data");
+    private static final LongAdder ACKS = Metrics.counter("engine.acks");
+    private static final LongAdder COMMANDS = Metrics.counter("engine.commands");
+    private static final LatencyHistogram END_TO_END =
+            Metrics.histogram("latency.endToEnd");
+    private static final LatencyHistogram TRANSIT =
+            Metrics.histogram("latency.transit");
+    private volatile Listener listener;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    static final int BASE_PORT = 1025;
+
+    /**
+     * Receives events of an engine, methods are called from the engine's
+     * threads (never from the Swing event thread)
+     */
+    public interface Listener {
+
+        /**
+         * called for every new data message received, including messages sent
+         * by this engine
+         * @param msg the received message
+         */
+        void messageReceived(Message msg);
+
+        /**
+         * called for every log line of the engine, lines are also written
+         * to the Log
+         * @param message log line
+         */
+        void logged(String message);
+    }
+
+    /**
+     * Constructor, the engine does not receive messages until started
+     * @param name the name of this client (also identifies it globally), must be unique
+     * @param group IP group to be used for client-server communications
+     * @param listener listener of received messages and log lines, could be null
+     */
+    public ClientEngine(String name, String group, Listener listener) {
+        this.name = name;
+        this.listener = listener;
+        String userHome = System.getProperty("user.home");
+        File status = new File(userHome + "/" + getName() + ".csdemo");
+        try {
+            long start = Clock.millis();
+            mManager = Journal.recover(status);
+            log("recovered " + mManager.getPendingCount() + " missed messages in " +
+                    (Clock.millis() - start) + " ms");
+        } catch (IOException err) {
+            warn("unable to get missed messages");
+            mManager = new MessageManager();
+        } catch (ClassNotFoundException err) {
+            err.printStackTrace();
+            System.exit(1);
+        }
+        try {
+            journal = new Journal(status, mManager);
+        } catch (IOException err) {
+            warn("unable to journal missed messages");
+        }
+
+        if (SharedTransport.ENABLED) {
+            transport = SharedTransport.getShared(group);
+            dispatchTask = new Runnable() {
+
+                public void run() {
+                    dispatchInbox();
+                }
+            };
+            client = new SendingClient(transport, name, this);
+        } else {
+            int port1 = getNextPort(BASE_PORT - 1);
+            int port2 = getNextPort(port1);
+            incoming = new IncomingServer(1024, port1, name, "225.0.0.1", group);
+            outgoing = new OutgoingServer(port2, 1024, name, group, "225.0.0.1");
+
+            rClient = new ReceivingClient(port1, name, group, this);
+
+            incoming.start();
+            log("incoming server started");
+            outgoing.start();
+            log("outgoing server started");
+
+            client = new SendingClient(port2, name, group, this);
+        }
+        retransmission = new RetransmissionScheduler(this, mManager, client);
+        replies = new AsyncSender(client);
+    }
+
+    /**
+     * starts receiving messages and resending missed messages
+     */
+    public void start() {
+        backlog = new Metrics.Source() {
+
+            public void report(Map<String, Long> values) {
+                values.put("engine." + name + ".pending",
+                        (long) mManager.getPendingCount());
+                values.put("engine." + name + ".mappedBytes",
+                        mManager.getMappedSize());
+                for (String peer : mManager.getKnownPeers()) {
+                    values.put("engine." + name + ".backlog." + peer,
+                            (long) mManager.getPendingCount(peer));
+                }
+            }
+        };
+        Metrics.addSource(backlog);
+        if (transport != null) {
+            transport.register(this);
+            log("registered with shared transport");
+        } else {
+            rClient.start();
+            log("receiving client started");
+        }
+        retransmission.start();
+    }
+
+    /**
+     * stops all servers and clients and saves missed messages
+     */
+    public void close() {
+        Metrics.removeSource(backlog);
+        if (transport != null) {
+            transport.unregister(this);
+            inbox.clear();
+            controlInbox.clear();
+            log("unregistered from shared transport");
+        } else {
+            rClient.deactivate();
+            log("receiving client stopped");
+            incoming.deactivate();
+            log("incoming server stopped");
+            outgoing.deactivate();
+            log("outgoing server stopped");
+        }
+        client.dispose();
+        log("client destroyed");
+        retransmission.stop();
+        replies.stop();
+        saveStatus();
+    }
+
+    /**
+     * @return name of this client
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * sets the listener of received messages and log lines
+     * @param listener new listener, could be null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * sends a data message to all peers
+     * @param content content of the message
+     * @return ID of the sent message
+     * @throws IOException if error occures while sending the message
+     */
+    public int send(String content) throws IOException {
+        Message msg = new Message(getName(), Message.ALL, content, Message.DATA);
+        msg.setID(getNextMessageID());
+        client.sendMessage(msg);
+        sent.incrementAndGet();
+        return msg.getID();
+    }
+
+    /**
+     * @return names of known peers
+     */
+    public Set<String> getKnownPeers() {
+        return mManager.getKnownPeers();
+    }
+
+    /**
+     * @return number of sent messages not yet acknowledged by all peers
+     */
+    public int getPendingCount() {
+        return mManager.getPendingCount();
+    }
+
+    /**
+     * @return number of data messages sent by send()
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of data messages received
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     *
+     * @return a unique integer to be used as message ID
+     */
+    public int getNextMessageID() {
+        return mManager.getNextMessageID();
+    }
+
+    /**
+     * makes the incoming server accept the retransmission of a data message
+     * that was dropped by the receiving client
+     * @param msg the dropped message
+     */
+    void forget(Message msg) {
+        if (incoming != null) {
+            incoming.forget(msg);
+        }
+    }
+
+    /**
+     * queues a message received by the shared transport to be dispatched on
+     * the transport's dispatching threads, never blocks. As in ReceivingClient,
+     * control and data messages are queued in separate bounded lanes
+     * @param msg received message
+     * @return false if the message was dropped because its lane is full
+     */
+    boolean deliver(Message msg) {
+        boolean control = msg.getType() != Message.DATA;
+        AtomicInteger count = control ? controlQueued : queued;
+        if (count.incrementAndGet() > (control
+                ? ReceivingClient.CONTROL_INBOX_SIZE : ReceivingClient.INBOX_SIZE)) {
+            count.decrementAndGet();
+            return false;
+        }
+        (control ? controlInbox : inbox).add(msg);
+        if (dispatching.compareAndSet(false, true)) {
+            SharedTransport.getExecutor().execute(dispatchTask);
+        }
+        return true;
+    }
+
+    /**
+     * utility method to dispatch queued messages, control lane first.
+     * Messages of one engine are never dispatched by two threads at once
+     */
+    private void dispatchInbox() {
+        do {
+            Message msg;
+            while ((msg = nextMessage()) != null) {
+                try {
+                    dispatch(msg);
+                } catch (RuntimeException err) {
+                    err.printStackTrace();
+                }
+            }
+            dispatching.set(false);
+        } while ((!controlInbox.isEmpty() || !inbox.isEmpty()) &&
+                dispatching.compareAndSet(false, true));
+    }
+
+    /**
+     * utility method to take the next queued message, control lane first
+     */
+    private Message nextMessage() {
+        Message msg = controlInbox.poll();
+        if (msg != null) {
+            controlQueued.decrementAndGet();
+            return msg;
+        }
+        msg = inbox.poll();
+        if (msg != null) {
+            queued.decrementAndGet();
+        }
+        return msg;
+    }
+
+    /**
+     * passes received message to the suitable handler
+     * @param clientMessage received message
+     */
+    void dispatch(Message clientMessage) {
+        Log.trace(getName(), "<-- ", clientMessage);
+
+        if (clientMessage.getType() == Message.DATA) {
+            DATA.increment();
+            addMessage(clientMessage);
+
+            if (!clientMessage.getSource().equals(getName())) {
+                long now = Clock.millis();
+                END_TO_END.record(now - clientMessage.getCreationDate());
+                TRANSIT.record(now - clientMessage.getSendingDate());
+
+                sendAck(clientMessage);
+            }
+        } else if (clientMessage.getType() == Message.ACKNOWLEDGE ||
+                clientMessage.getType() == Message.CUMULATIVE_ACK) {
+            ACKS.increment();
+            acknowledgeMessage(clientMessage);
+        } else if (clientMessage.getType() == Message.COMMAND) {
+            COMMANDS.increment();
+            processCommand(clientMessage);
+        }
+    }
+
+    /**
+     * passes a received data message to the listener
+     * @param msg received message
+     */
+    void addMessage(Message msg) {
+        received.incrementAndGet();
+        Listener l = listener;
+        if (l != null) {
+            l.messageReceived(msg);
+        }
+    }
+
+    /**
+     * handles acknowledgement message from remote peer, either a single
+     * message acknowledgement or a cumulative acknowledgement
+     * @param ack
+     */
+    void acknowledgeMessage(Message ack) {
+        if (ack.getSource().equals(getName())) {
+            return;
+        }
+        if (ack.getType() == Message.ACKNOWLEDGE) {
+            mManager.acknowledge(ack.getSource(), ack.getID());
+            mManager.resetTries(ack.getSource());
+            log("acknowledged message " + ack.getID() + " from " + ack.getSource());
+        } else if (ack.getType() == Message.CUMULATIVE_ACK) {
+            int from = CumulativeAck.getFromID(ack);
+            int to = CumulativeAck.getToID(ack);
+            long bitmap = CumulativeAck.getBitmap(ack);
+            mManager.acknowledgeRange(ack.getSource(), from, to);
+            mManager.acknowledgeBitmap(ack.getSource(), to + 2, bitmap);
+            mManager.resetTries(ack.getSource());
+            log("acknowledged messages " + from + "-" + to +
+                    (bitmap == 0 ? "" : " (+" + Long.bitCount(bitmap) + ")") +
+                    " from " + ack.getSource());
+        }
+    }
+
+    /**
+     * Saves missed messages information to hard drive before shutting down,
+     * changes are journaled while running so this only compacts the journal
+     */
+    void saveStatus() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+            log("journal compacted, " + journal.getBytesWritten() + " bytes written");
+        } catch (IOException err) {
+            warn("unable to save missed messages");
+        }
+    }
+
+    /**
+     * Acknowledges an incoming message, the acknowledgement is sent later
+     * together with acknowledgements of other messages from the same source
+     * as a cumulative acknowledgement, never blocks
+     * @param clientMessage the incoming message
+     */
+    void sendAck(Message clientMessage) {
+        replies.acknowledge(clientMessage.getSource(), clientMessage.getID());
+    }
+
+    /**
+     * Tells the source of an incomplete fragmented message which fragments
+     * were received, so it resends only the missing ones, never blocks
+     * @param source name of the client that sent the message
+     * @param id ID of the incomplete message
+     * @param fragments indexes of the received fragments
+     */
+    void reportFragments(String source, int id, BitSet fragments) {
+        Message report = new Message(getName(), source, Message.FRAGMENTS +
+                ";" + Reassembler.encodeFragments(fragments), Message.COMMAND);
+        report.setID(id);
+        replies.send(report);
+    }
+
+    /**
+     * logs the given message and passes it to the listener
+     * @param message message text to be logged
+     */
+    void log(String message) {
+        Log.info(name, message);
+        Listener l = listener;
+        if (l != null) {
+            l.logged(message);
+        }
+    }
+
+    /**
+     * logs the given warning and passes it to the listener
+     * @param message warning text to be logged
+     */
+    void warn(String message) {
+        Log.warning(name, message);
+        Listener l = listener;
+        if (l != null) {
+            l.logged("WARNING: " + message);
+        }
+    }
+
+    /**
+     * handles received command message, a SYNC broadcast is answered with a
+     * SYNC addressed to its source only (answers are not answered again).
+     * Received messages may be shared by several engines, so they are never
+     * changed
+     * @param msg incoming command message
+     */
+    void processCommand(Message msg) {
+        String source = msg.getSource();
+        if (source.equals(getName())) {
+            return;
+        }
+        if (msg.getContent().startsWith(Message.FRAGMENTS + ";")) {
+            try {
+                retransmission.fragmentsReceived(source, msg.getID(),
+                        Reassembler.decodeFragments(msg.getContent().substring(
+                        Message.FRAGMENTS.length() + 1)));
+            } catch (NumberFormatException err) {
+                warn("invalid fragments report from " + source);
+            }
+            return;
+        }
+        if (msg.getContent().equals(Message.SYNC)) {
+            if (mManager.getKnownPeers().contains(source)) {
+                if (mManager.getTries(source) > RetransmissionScheduler.TRIES) {
+                    log("knows that " + source + " is up again");
+                }
+                mManager.resetTries(source);
+            } else {
+                mManager.addPeer(source);
+                log("now knows " + source);
+
+            }
+            if (!msg.getDestination().equals(Message.ALL)) {
+                return;
+            }
+            Message reply = new Message(getName(), source, Message.SYNC,
+                    Message.COMMAND);
+            reply.setID(msg.getID());
+            msg = reply;
+        }
+
+        replies.send(msg);
+    }
+
+    /**
+     * Utility method to look for open communication port to be used
+     * @param startPort port number from which search should start
+     * @return next available port
+     */
+    static int getNextPort(int startPort) {
+        int port = startPort + 1;
+        boolean done = false;
+
+        while (!done) {
+            try {
+                DatagramSocket s = new DatagramSocket(port);
+                s.close();
+                s = null;
+                done = true;
+            } catch (Exception e) {
+                port++;
+            }
+        }
+        return port;
+    }
+}
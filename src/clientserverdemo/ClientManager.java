@@ -2,32 +2,33 @@ package clientserverdemo;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.DatagramSocket;
-import java.util.TreeSet;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
 /**
- * A GUI interface that allows user to send and receive messages
+ * A GUI interface that allows user to send and receive messages, messaging
+ * itself is done by a headless ClientEngine. Received messages are queued and
+ * added to the history on the Swing event thread at most once every
+ * RENDER_DELAY milliseconds, the history list only paints visible lines
  * @author Yasser Jaffal
  */
 public class ClientManager extends JFrame implements
-        ActionListener, KeyListener, Comparable<ClientManager> {
+        KeyListener, ActionListener, ClientEngine.Listener,
+        Comparable<ClientManager> {
 
-    private static final int DELAY = 3000;
-    private static final int TRIES = 3;
-    private OutgoingServer outgoing;
-    private IncomingServer incoming;
-    private SendingClient client;
-    private ReceivingClient rClient;
+    private ClientEngine engine;
     private JTextField inputField;
     private JButton send;
-    private JTextArea history;
-    MessageManager mManager;
-    private javax.swing.Timer t;
+    private JList<Message> history;
+    private HistoryModel messageHistory;
     private Main parent;
-    private TreeSet<Message> messageHistory;
-    private static final int BASE_PORT = 1025;
+    private final ConcurrentLinkedQueue<Message> received =
+            new ConcurrentLinkedQueue<Message>();
+    private final AtomicBoolean renderScheduled = new AtomicBoolean();
+    private Timer renderer;
+    public static final int RENDER_DELAY = 40;
 
     /**
      * Constructor
@@ -39,43 +40,35 @@ public class ClientManager extends JFrame implements
     public ClientManager(String name, String group, Main parent) {
         setName(name);
         setParent(parent);
-        String userHome = System.getProperty("user.home");
-        try {
-            ObjectInputStream in = new ObjectInputStream(
-                    new FileInputStream(userHome + "/" + getName() + ".csdemo"));
-            mManager = (MessageManager) in.readObject();
-        } catch (FileNotFoundException err) {
-            mManager = new MessageManager();
-        } catch (IOException err) {
-            log("WARNING: unable to get missed messages");
-            mManager = new MessageManager();
-        } catch (ClassNotFoundException err) {
-            err.printStackTrace();
-            System.exit(1);
-        }
-
-        int port1 = getNextPort(BASE_PORT - 1);
-        int port2 = getNextPort(port1);
         inputField = new JTextField(20);
         inputField.addKeyListener(this);
-        history = new JTextArea(20, 20);
-        history.setEditable(false);
+        messageHistory = new HistoryModel();
+        history = new JList<Message>(messageHistory);
+        history.setCellRenderer(new DefaultListCellRenderer() {
+
+            @Override
+            public Component getListCellRendererComponent(JList<?> list,
+                    Object value, int index, boolean selected, boolean focused) {
+                Message m = (Message) value;
+                return super.getListCellRendererComponent(list,
+                        m.getSource() + ": " + m.getContent(), index,
+                        selected, focused);
+            }
+        });
+        history.setFixedCellWidth(300);
+        history.setFixedCellHeight(history.getFontMetrics(
+                history.getFont()).getHeight() + 2);
         send = new JButton("Send");
-        incoming = new IncomingServer(1024, port1, name, "225.0.0.1", group);
-        outgoing = new OutgoingServer(port2, 1024, name, group, "225.0.0.1");
-
-        rClient = new ReceivingClient(port1, name, group, this);
+        send.addActionListener(this);
+        renderer = new Timer(RENDER_DELAY, new ActionListener() {
 
-        incoming.start();
-        log("incoming server started");
-        outgoing.start();
-        log("outgoing server started");
-        rClient.start();
-        log("receiving client started");
+            public void actionPerformed(ActionEvent e) {
+                render();
+            }
+        });
+        renderer.setRepeats(false);
 
-        client = new SendingClient(port2, name, group, this);
-        send.addActionListener(client);
-        t = new Timer(DELAY, this);
+        engine = new ClientEngine(name, group, this);
 
         setSize(330, 220);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -86,20 +79,17 @@ public class ClientManager extends JFrame implements
         JScrollPane sp = new JScrollPane(history);
         getContentPane().add(sp, BorderLayout.CENTER);
 
-        messageHistory = new TreeSet<Message>();
-
         setTitle(name);
         setResizable(false);
-        t.start();
+        engine.start();
         setVisible(true);
     }
 
     /**
-     *
-     * @return a unique integer to be used as message ID
+     * @return the engine that does the messaging of this client
      */
-    public int getNextMessageID() {
-        return mManager.nextMessageID++;
+    public ClientEngine getEngine() {
+        return engine;
     }
 
     /**
@@ -107,7 +97,7 @@ public class ClientManager extends JFrame implements
      * tasks
      * @param e
      */
-    
+
 
     @Override
     public void setVisible(boolean visible){
@@ -118,151 +108,72 @@ public class ClientManager extends JFrame implements
 
     @Override
     public void dispose(){
-        rClient.deactivate();
-        log("receiving client stopped");
-        incoming.deactivate();
-        log("incoming server stopped");
-        outgoing.deactivate();
-        log("outgoing server stopped");
-        client.dispose();
-        log("client destroyed");
-        t.stop();
-        t = null;
+        renderer.stop();
+        engine.close();
         getParent().clients.remove(this);
-        saveStatus();
         super.dispose();
     }
 
     /**
-     * same as actionPerformed()
+     * sends the typed message to all peers
      * @param e
      */
-    public void keyPressed(KeyEvent e) {
-        if (e.getKeyCode() == KeyEvent.VK_ENTER &&
-                inputField.getText().trim().length() > 0) {
-            client.actionPerformed(null);
+    public void actionPerformed(ActionEvent e) {
+        String input = inputField.getText();
+        if (input.trim().length() == 0) {
+            return;
+        }
+        inputField.setText("");
+        try {
+            engine.send(input);
+        } catch (IOException err) {
+            System.err.println(err.getMessage());
+            err.printStackTrace();
         }
     }
 
     /**
-     * handles acknowledgement message from remote peer
-     * @param ack
+     * same as actionPerformed()
+     * @param e
      */
-    void acknowledgeMessage(Message ack) {
-        if (ack.getType() == Message.ACKNOWLEDGE &&
-                !ack.getSource().equals(getName())) {
-            mManager.acknowledge(ack.getSource(), ack.getID());
-            mManager.resetTries(ack.getSource());
-            log("acknowledged message " + ack.getID() + " from " + ack.getSource());
+    public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_ENTER &&
+                inputField.getText().trim().length() > 0) {
+            actionPerformed(null);
         }
     }
 
     /**
-     * Adds new message to history and mdifies messages order if necessary
+     * Queues new message to be added to history, called by the engine
+     * (never on the Swing event thread)
      * @param msg
      */
-    void addMessage(Message msg) {
-        if(messageHistory.isEmpty() ||
-                messageHistory.last().getCreationDate() <
-                msg.getCreationDate()){
-            messageHistory.add(msg);
-            history.append(msg.getSource() + ": " + msg.getContent() + "\n");
-        } else {
-            messageHistory.add(msg);
-            history.setText("");
-            for(Message m : messageHistory){
-                history.append(m.getSource() + ": " + m.getContent() + "\n");
-            }
+    public void messageReceived(Message msg) {
+        received.add(msg);
+        if (renderScheduled.compareAndSet(false, true)) {
+            renderer.restart();
         }
-        history.setCaretPosition(history.getText().length());
     }
 
     /**
-     * Saves missed messages information to hard drive before shutting down
+     * adds all queued messages to history in their order, and scrolls to
+     * the end if the newest message was added, called on the Swing event thread
      */
-    void saveStatus() {
-        String userDir = System.getProperty("user.home");
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(
-                    new FileOutputStream(userDir + "/" + getName() + ".csdemo"));
-            out.writeObject(mManager);
-            out.close();
-        } catch (Exception err) {
-            log(" WARNING: unable to save missed messages");
+    private void render() {
+        renderScheduled.set(false);
+        boolean last = false;
+        Message msg;
+        while ((msg = received.poll()) != null) {
+            int index = messageHistory.add(msg);
+            last |= index >= 0 && index == messageHistory.getSize() - 1;
         }
-    }
-
-    /**
-     * Acknowledges an incoming message by sendign acknowledgement
-     * message to the source of the received message
-     * @param clientMessage the incoming message
-     */
-    void sendAck(Message clientMessage) {
-        clientMessage.setType(Message.ACKNOWLEDGE);
-        clientMessage.setDestination(clientMessage.getSource());
-        clientMessage.setSource(getName());
-        try {
-            Thread.currentThread().sleep(OutgoingServer.TIMEOUT * 200);
-            client.sendMessage(clientMessage);
-        } catch (IOException err) {
-            err.printStackTrace();
-            System.exit(1);
-        } catch (InterruptedException err) {
-        } finally{
-            clientMessage.setSource(clientMessage.getDestination());
-            clientMessage.setDestination(getName());
+        if (last) {
+            history.ensureIndexIsVisible(messageHistory.getSize() - 1);
         }
     }
 
     /**
-     * Handles timer events and periodically check for any missed messages
-     * and try to send them again
-     * @param e
-     */
-    public void actionPerformed(ActionEvent e) {
-        t.stop();
-        t.removeActionListener(this);
-        for (String peer : mManager.getKnownPeers()) {
-            if (mManager.getTries(peer) == TRIES) {
-                mManager.increaseTries(peer);
-                log("now belives that " + peer + " is offline");
-                continue;
-            } else if (mManager.getTries(peer) > TRIES) {
-                continue;
-            }
-
-            Message[] missed = mManager.getMissedMessages(peer);
-            for (int i = 0; i < missed.length; i++) {
-                try {
-                    log("sending missed message " +
-                            missed[i].getID() +
-                            " to " + peer + "[" +
-                            mManager.getTries(peer) + "]");
-
-                    missed[i].resurrect();
-                    if (i == 0) {
-                        client.sendMessage(missed[i]);
-                    } else if (missed[i].getID() != missed[i - 1].getID()) {
-                        client.sendMessage(missed[i]);
-                    }
-                    Thread.currentThread().sleep(200);
-                } catch (IOException err) {
-                    err.printStackTrace();
-                    System.exit(0);
-                } catch (InterruptedException err) {
-                }
-            }
-            if (missed.length > 0) {
-                mManager.increaseTries(peer);
-            }
-        }
-        t.setDelay(DELAY * mManager.getKnownPeers().size());
-        t.addActionListener(this);
-        t.start();
-    }
-
-    /**
-     * 
+     *
      * @return reference to the parent Main frame
      */
     @Override
@@ -271,16 +182,11 @@ public class ClientManager extends JFrame implements
     }
 
     /**
-     * partially synchronized method to pass the given message to the parent
-     * window in order to be logged
-     * @param message message text to be logged in the parent Main window
+     * not implemented, log lines reach the parent Main window through its
+     * Log sink
+     * @param message
      */
-    private void log(String message) {
-        JTextArea logArea = this.getParent().logArea;
-        synchronized (logArea) {
-            logArea.append("\"" + getName() + "\" " + message + "\n");
-            logArea.setCaretPosition(logArea.getText().length());
-        }
+    public void logged(String message) {
     }
 
     /**
@@ -291,80 +197,6 @@ public class ClientManager extends JFrame implements
         this.parent = parent;
     }
 
-    /**
-     * handles received command message
-     * @param msg incoming command message
-     */
-    void processCommand(Message msg) {
-        String source = msg.getSource();
-        if (source.equals(getName())) {
-            return;
-        }
-        if (msg.getContent().equals(Message.SYNC)) {
-            if (mManager.getKnownPeers().contains(source)) {
-                if (mManager.getTries(source) > TRIES) {
-                    log("knows that " + source + " is up again");
-                }
-                mManager.resetTries(source);
-            } else {
-                mManager.addPeer(source);
-                log("now knows " + source);
-
-            }
-            msg.setSource(getName());
-            msg.setDestination(source);
-        }
-
-        try {
-            Thread.currentThread().sleep(OutgoingServer.TIMEOUT * 100);
-            client.sendMessage(msg);
-        } catch (IOException err) {
-            err.printStackTrace();
-            System.exit(0);
-        } catch (InterruptedException err) {
-        }
-
-    }
-
-    /**
-     * Utility method to look for open communication port to be used
-     * @param startPort port number from which search should start
-     * @return next available port
-     */
-    private int getNextPort(int startPort) {
-        int port = startPort + 1;
-        boolean done = false;
-
-        while (!done) {
-            try {
-                DatagramSocket s = new DatagramSocket(port);
-                s.close();
-                s = null;
-                done = true;
-            } catch (Exception e) {
-                port++;
-            }
-        }
-        return port;
-    }
-
-    /**
-     * inputField accessor
-     * @return reference to inputField
-     */
-    JTextField getInputField() {
-        return inputField;
-    }
-
-    /**
-     * history area accessor
-     * @return reference to history JTextArea
-     */
-    JTextArea getHistoryArea() {
-        return history;
-    }
-
-    
     /**
      * not implemented
      * @param e
@@ -0,0 +1,150 @@
+package clientserverdemo;
+
+/**
+ * Source of time used by messages, servers and clients. Wall clock time
+ * (milliseconds since the epoch) is used for message dates, which are
+ * compared between hosts, monotonic time (nanoseconds from an arbitrary
+ * origin) is used for timeouts, rates and deadlines inside the process. The
+ * clock in use is read from the system property <B>clientserverdemo.clock</B>:<BR>
+ * <B>system</B> (default) reads the system clocks on every call,<BR>
+ * <B>cached</B> reads a wall clock time refreshed every
+ * <B>clientserverdemo.clockResolution</B> milliseconds (default 1) by a
+ * background thread, so reading it is a single volatile read.<BR>
+ * Tests could install a Fake clock with set(). Event loop and logger waits
+ * always use the system clock since they block in real time
+ * @author Yasser Jaffal
+ */
+public abstract class Clock {
+
+    /**
+     * Clock that reads the system clocks
+     */
+    public static final Clock SYSTEM = new Clock() {
+
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+    private static volatile Clock current =
+            "cached".equalsIgnoreCase(System.getProperty("clientserverdemo.clock"))
+            ? new Cached(Long.getLong("clientserverdemo.clockResolution", 1))
+            : SYSTEM;
+
+    /**
+     * @return wall clock time in milliseconds since the epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @return monotonic time in nanoseconds, only differences between two
+     * readings are meaningful
+     */
+    public abstract long nanoTime();
+
+    /**
+     * @return the clock in use
+     */
+    public static Clock get() {
+        return current;
+    }
+
+    /**
+     * replaces the clock in use, for tests
+     * @param clock new clock
+     */
+    public static void set(Clock clock) {
+        current = clock;
+    }
+
+    /**
+     * @return wall clock time of the clock in use
+     */
+    public static long millis() {
+        return current.currentTimeMillis();
+    }
+
+    /**
+     * @return monotonic time of the clock in use
+     */
+    public static long nanos() {
+        return current.nanoTime();
+    }
+
+    /**
+     * Wall clock refreshed periodically by a daemon thread, monotonic time
+     * is read from the system
+     */
+    static class Cached extends Clock implements Runnable {
+
+        private final long resolution;
+        private volatile long millis = System.currentTimeMillis();
+
+        /**
+         * Constructor, starts refreshing
+         * @param resolution milliseconds between refreshes
+         */
+        Cached(long resolution) {
+            this.resolution = Math.max(1, resolution);
+            Thread t = new Thread(this, "clock");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            while (true) {
+                millis = System.currentTimeMillis();
+                try {
+                    Thread.sleep(resolution);
+                } catch (InterruptedException err) {
+                }
+            }
+        }
+
+        public long currentTimeMillis() {
+            return millis;
+        }
+
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * Clock that only moves when told to, for deterministic tests. Both
+     * times move together
+     */
+    public static class Fake extends Clock {
+
+        private volatile long millis;
+        private volatile long nanos;
+
+        /**
+         * Constructor
+         * @param millis initial wall clock time
+         */
+        public Fake(long millis) {
+            this.millis = millis;
+        }
+
+        public long currentTimeMillis() {
+            return millis;
+        }
+
+        public long nanoTime() {
+            return nanos;
+        }
+
+        /**
+         * moves the clock forward
+         * @param ms milliseconds to move by
+         */
+        public synchronized void advance(long ms) {
+            millis += ms;
+            nanos += ms * 1000000L;
+        }
+    }
+}
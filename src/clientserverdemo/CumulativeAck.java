@@ -0,0 +1,92 @@
+package clientserverdemo;
+
+/**
+ * Utility class to build and read cumulative acknowledgements. A cumulative
+ * acknowledgement is a CUMULATIVE_ACK message that acknowledges a range of
+ * message IDs instead of echoing a single message back: its ID is the highest
+ * ID of a contiguous range, it has no content and carries the first ID of
+ * the range and a selective acknowledgement bitmap as binary header fields
+ * (see MessageCodec), where bit i of the BITMAP acknowledges ID + 2 + i
+ * (ID + 1 is known to be missing, otherwise it would be part of the range)
+ * @author Yasser Jaffal
+ */
+public final class CumulativeAck {
+
+    public static final int BITMAP_SIZE = 64;
+
+    private CumulativeAck() {
+    }
+
+    /**
+     * builds acknowledgements for the passed IDs
+     * @param source name of the acknowledging client
+     * @param dest name of the client whose messages are acknowledged
+     * @param ids acknowledged IDs in increasing order
+     * @return as few acknowledgement messages as needed to cover all IDs
+     */
+    public static Message[] create(String source, String dest, int[] ids) {
+        Message[] result = new Message[ids.length];
+        int count = 0;
+        int i = 0;
+        long now = Clock.millis();
+        while (i < ids.length) {
+            int from = ids[i];
+            int to = from;
+            i++;
+            while (i < ids.length && ids[i] == to + 1) {
+                to = ids[i++];
+            }
+            long bitmap = 0;
+            while (i < ids.length && ids[i] - to - 2 < BITMAP_SIZE) {
+                bitmap |= 1L << (ids[i] - to - 2);
+                i++;
+            }
+            result[count++] = create(source, dest, from, to, bitmap, now);
+        }
+        Message[] trimmed = new Message[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * builds a single acknowledgement
+     * @param source name of the acknowledging client
+     * @param dest name of the client whose messages are acknowledged
+     * @param from first ID of the contiguous range
+     * @param to last ID of the contiguous range
+     * @param bitmap bit i acknowledges to + 2 + i
+     * @param now sending date of the acknowledgement
+     * @return the acknowledgement
+     */
+    public static Message create(String source, String dest, int from, int to,
+            long bitmap, long now) {
+        Message ack = new Message(to, now, now, source, dest, null,
+                Message.CUMULATIVE_ACK);
+        ack.setAckRange(from, bitmap);
+        return ack;
+    }
+
+    /**
+     * @param ack cumulative acknowledgement
+     * @return first acknowledged ID of the contiguous range
+     */
+    public static int getFromID(Message ack) {
+        return ack.getAckFrom();
+    }
+
+    /**
+     * @param ack cumulative acknowledgement
+     * @return last acknowledged ID of the contiguous range
+     */
+    public static int getToID(Message ack) {
+        return ack.getID();
+    }
+
+    /**
+     * @param ack cumulative acknowledgement
+     * @return selective acknowledgement bitmap, 0 if there is none
+     */
+    public static long getBitmap(Message ack) {
+        return ack.getAckBitmap();
+    }
+}
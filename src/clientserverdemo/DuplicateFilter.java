@@ -0,0 +1,213 @@
+package clientserverdemo;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded filter of duplicated messages. For every source it remembers only
+ * the most recent WINDOW message IDs as a sliding bitmap (a low watermark
+ * plus one bit per ID), and only the most recently active SOURCES sources are
+ * remembered at all, so memory does not grow with the number of received
+ * messages. The filter never reports a new message as duplicated; an ID older
+ * than its source's window is accepted and counted as a possible duplicate,
+ * since such a message is either a resend of a very old missed message or
+ * comes from a peer that restarted its IDs. Window sizes are read from the
+ * system properties <B>clientserverdemo.dedupWindow</B> (IDs per source) and
+ * <B>clientserverdemo.dedupSources</B>. Not thread safe, each server uses its
+ * own filter from its event loop thread; statistics may be read from any
+ * thread and are approximate
+ * @author Yasser Jaffal
+ */
+class DuplicateFilter {
+
+    public static final int WINDOW = roundUp(
+            Integer.getInteger("clientserverdemo.dedupWindow", 4096));
+    public static final int SOURCES =
+            Integer.getInteger("clientserverdemo.dedupSources", 1024);
+    private static final int OVERHEAD = 64;
+    private final LinkedHashMap<String, Window> sources =
+            new LinkedHashMap<String, Window>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+                    if (size() > SOURCES) {
+                        evictedSources++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private long lookups, duplicates, outOfWindow, evictedSources;
+
+    /**
+     * Sliding window of received IDs of a single source
+     */
+    private static class Window {
+
+        final long[] bits = new long[WINDOW / 64];
+        int base;
+
+        /**
+         * @return true if id is inside this window
+         */
+        boolean covers(int id) {
+            return id - base >= 0;
+        }
+
+        boolean get(int id) {
+            return covers(id) && id - base < WINDOW &&
+                    (bits[(id & (WINDOW - 1)) >>> 6] & (1L << id)) != 0;
+        }
+
+        void set(int id) {
+            int shift = id - base - WINDOW + 1;
+            if (shift > 0) {
+                if (shift >= WINDOW) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (int i = base; i != base + shift; i++) {
+                        bits[(i & (WINDOW - 1)) >>> 6] &= ~(1L << i);
+                    }
+                }
+                base += shift;
+            }
+            bits[(id & (WINDOW - 1)) >>> 6] |= 1L << id;
+        }
+    }
+
+    /**
+     * checks whether a message was already seen, without recording it
+     * @param source source name of the message
+     * @param id ID of the message
+     * @return true if message is known to be a duplicate
+     */
+    public boolean contains(String source, int id) {
+        lookups++;
+        Window w = sources.get(source);
+        if (w != null && w.get(id)) {
+            duplicates++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * records a message
+     * @param source source name of the message
+     * @param id ID of the message
+     * @return true if message is new, false if it is a duplicate
+     */
+    public boolean add(String source, int id) {
+        lookups++;
+        Window w = sources.get(source);
+        if (w == null) {
+            w = new Window();
+            w.base = id - WINDOW + 1;
+            sources.put(source, w);
+        } else if (!w.covers(id)) {
+            outOfWindow++;
+            return true;
+        } else if (w.get(id)) {
+            duplicates++;
+            return false;
+        }
+        w.set(id);
+        return true;
+    }
+
+    /**
+     * forgets a recorded message, so it is accepted again if it is resent
+     * @param source source name of the message
+     * @param id ID of the message
+     */
+    public void remove(String source, int id) {
+        Window w = sources.get(source);
+        if (w != null && w.get(id)) {
+            w.bits[(id & (WINDOW - 1)) >>> 6] &= ~(1L << id);
+        }
+    }
+
+    /**
+     * @return number of lookups so far
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return number of messages rejected as duplicates so far
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return number of messages older than their source's window that were
+     * accepted, an upper bound of duplicates let through
+     */
+    public long getOutOfWindow() {
+        return outOfWindow;
+    }
+
+    /**
+     * @return fraction of lookups that may have let a duplicate through, the
+     * filter has no false positives (new messages rejected)
+     */
+    public double getFalseNegativeRate() {
+        long n = lookups;
+        return n == 0 ? 0 : (double) outOfWindow / n;
+    }
+
+    /**
+     * @return number of sources forgotten to keep memory bounded
+     */
+    public long getEvictedSources() {
+        return evictedSources;
+    }
+
+    /**
+     * @return estimated memory used by the filter in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) sources.size() * (WINDOW / 8 + OVERHEAD);
+    }
+
+    /**
+     * @param prefix prefix of the reported names
+     * @return source that reports the statistics of this filter to Metrics,
+     * the false negative rate is reported in parts per million
+     */
+    Metrics.Source metrics(final String prefix) {
+        return new Metrics.Source() {
+
+            public void report(Map<String, Long> values) {
+                values.put(prefix + ".lookups", lookups);
+                values.put(prefix + ".duplicates", duplicates);
+                values.put(prefix + ".outOfWindow", outOfWindow);
+                values.put(prefix + ".falseNegativePpm",
+                        Math.round(getFalseNegativeRate() * 1e6));
+                values.put(prefix + ".evictedSources", evictedSources);
+                values.put(prefix + ".memoryBytes", getMemoryUsage());
+            }
+        };
+    }
+
+    /**
+     * @return summary of the filter statistics
+     */
+    @Override
+    public String toString() {
+        return "lookups=" + lookups + " duplicates=" + duplicates +
+                " outOfWindow=" + outOfWindow + " evictedSources=" +
+                evictedSources + " memory=" + getMemoryUsage() + "B";
+    }
+
+    /**
+     * utility method to round the window size up to a power of two of at
+     * least 64
+     */
+    private static int roundUp(int size) {
+        return Math.max(64, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+    }
+}
@@ -0,0 +1,243 @@
+package clientserverdemo;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Readiness based event loop shared by all servers and clients in the process.
+ * Each loop thread owns a Selector and a set of datagram channels, and calls
+ * the handler of a channel only when that channel has data to read. Number of
+ * loop threads is read from the system property <B>clientserverdemo.loopThreads</B>
+ * (defaults to the number of available processors)
+ * @author Yasser Jaffal
+ */
+public class EventLoop {
+
+    private static EventLoop shared;
+    private final Worker[] workers;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Handler of read readiness events of a single channel
+     */
+    public interface DatagramHandler {
+
+        /**
+         * called on the loop thread when channel has datagrams to read,
+         * handler should read until channel.receive() returns null
+         * @param channel the ready channel
+         * @throws IOException if error occures while reading the channel
+         */
+        void datagramReady(DatagramChannel channel) throws IOException;
+    }
+
+    /**
+     * Constructor
+     * @param threads number of loop threads (and selectors) to run
+     * @throws IOException if a selector could not be opened
+     */
+    public EventLoop(int threads) throws IOException {
+        workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("event-loop-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return the event loop shared by all endpoints of this process
+     */
+    public static synchronized EventLoop getShared() {
+        if (shared == null) {
+            try {
+                shared = new EventLoop(Integer.getInteger(
+                        "clientserverdemo.loopThreads",
+                        Runtime.getRuntime().availableProcessors()));
+            } catch (IOException err) {
+                err.printStackTrace();
+                System.exit(1);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * registers a channel with one of the loop threads, channel is switched
+     * to non-blocking mode
+     * @param channel channel to watch for incoming datagrams
+     * @param handler handler to call when channel is ready
+     * @throws IOException if channel could not be switched to non-blocking mode
+     */
+    public void register(final DatagramChannel channel,
+            final DatagramHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        final Worker worker = workers[(next.getAndIncrement() & 0x7FFFFFFF) % workers.length];
+        worker.submit(new Runnable() {
+
+            public void run() {
+                try {
+                    channel.register(worker.selector, SelectionKey.OP_READ, handler);
+                } catch (ClosedChannelException err) {
+                }
+            }
+        });
+    }
+
+    /**
+     * stops watching the passed channel and closes it, the owning loop thread
+     * is woken up immediately
+     * @param channel channel to close
+     */
+    public void close(final DatagramChannel channel) {
+        for (final Worker worker : workers) {
+            if (channel.keyFor(worker.selector) != null) {
+                worker.submit(new Runnable() {
+
+                    public void run() {
+                        closeQuietly(channel);
+                    }
+                });
+                return;
+            }
+        }
+        closeQuietly(channel);
+    }
+
+    /**
+     * runs a task once on the loop thread that owns the passed channel after
+     * the passed delay, so the task never runs concurrently with the
+     * channel's handler. Nothing happens if the channel is not registered
+     * @param channel registered channel
+     * @param task task to run
+     * @param delay delay in nanoseconds
+     */
+    public void schedule(DatagramChannel channel, final Runnable task,
+            long delay) {
+        final long deadline = System.nanoTime() + delay;
+        for (final Worker worker : workers) {
+            if (channel.keyFor(worker.selector) != null) {
+                worker.submit(new Runnable() {
+
+                    public void run() {
+                        worker.timers.add(new Timer(deadline, task));
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    /**
+     * utility method to close a channel ignoring errors
+     */
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException err) {
+        }
+    }
+
+    /**
+     * Task to run at a given System.nanoTime()
+     */
+    private static class Timer implements Comparable<Timer> {
+
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(Timer o) {
+            return Long.signum(deadline - o.deadline);
+        }
+    }
+
+    /**
+     * A single loop thread with its own selector
+     */
+    private static class Worker extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks =
+                new ConcurrentLinkedQueue<Runnable>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+        public Worker(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * runs the task on this loop thread and wakes the selector up
+         * @param task task to run
+         */
+        public void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Timer first = timers.peek();
+                    if (first == null) {
+                        selector.select();
+                    } else {
+                        long wait = first.deadline - System.nanoTime();
+                        if (wait > 0) {
+                            selector.select(
+                                    TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                } catch (IOException err) {
+                    err.printStackTrace();
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                    try {
+                        timers.poll().task.run();
+                    } catch (RuntimeException err) {
+                        err.printStackTrace();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    try {
+                        ((DatagramHandler) key.attachment()).datagramReady(channel);
+                    } catch (IOException err) {
+                        err.printStackTrace();
+                        key.cancel();
+                        closeQuietly(channel);
+                    } catch (RuntimeException err) {
+                        err.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package clientserverdemo;
+
+import java.util.ArrayList;
+import javax.swing.AbstractListModel;
+
+/**
+ * Chat history of a client ordered by creation date of messages. A message
+ * that arrives out of order is inserted at its place instead of rebuilding
+ * the whole history, and only the newest <B>clientserverdemo.historyLines</B>
+ * messages (default 1000) are kept. Used from the Swing event thread only
+ * @author Yasser Jaffal
+ */
+class HistoryModel extends AbstractListModel<Message> {
+
+    private static final long serialVersionUID = 1L;
+    public static final int MAX_LINES =
+            Integer.getInteger("clientserverdemo.historyLines", 1000);
+    private final ArrayList<Message> messages = new ArrayList<Message>();
+
+    /**
+     * inserts a message at its place in the history, dropping the oldest
+     * messages if the history is full
+     * @param msg message to insert
+     * @return index of the inserted message, -1 if it is older than all
+     * kept messages of a full history
+     */
+    public int add(Message msg) {
+        int index = indexAfter(msg.getCreationDate());
+        if (messages.size() >= MAX_LINES) {
+            if (index == 0) {
+                return -1;
+            }
+            messages.remove(0);
+            fireIntervalRemoved(this, 0, 0);
+            index--;
+        }
+        messages.add(index, msg);
+        fireIntervalAdded(this, index, index);
+        return index;
+    }
+
+    public int getSize() {
+        return messages.size();
+    }
+
+    public Message getElementAt(int index) {
+        return messages.get(index);
+    }
+
+    /**
+     * utility method to find the index after all messages created at or
+     * before the passed date (binary search)
+     */
+    private int indexAfter(long date) {
+        int low = 0, high = messages.size();
+        if (high > 0 && messages.get(high - 1).getCreationDate() <= date) {
+            return high;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).getCreationDate() <= date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -1,24 +1,48 @@
 package clientserverdemo;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This server handles message coming from other peers and forewards them to
  * the client (if this is suitable)
  * @author Yasser Jaffal
  */
-public class IncomingServer extends Thread {
+public class IncomingServer implements EventLoop.DatagramHandler {
 
     private int listeningPort;
     private int sendingPort;
-    public static final int BUFFER_SIZE = 256;
+    public static final int BUFFER_SIZE = OutgoingServer.BUFFER_SIZE;
     public static final int TIMEOUT = 1;
-    private boolean active = true;
+    private String name;
     private String sendGroup, receiveGroup;
-    private MulticastSocket listeningSocket;
-    private DatagramSocket sendingSocket;
-    private MessageArchive archive;
+    private DatagramChannel listeningChannel;
+    private DatagramChannel sendingChannel;
+    private InetSocketAddress clientAddress;
+    private MembershipKey membership;
+    private DuplicateFilter archive;
+    private Metrics.Source archiveMetrics;
+    private final ConcurrentLinkedQueue<Message> forgotten =
+            new ConcurrentLinkedQueue<Message>();
+    private EventLoop loop;
+    private BufferPool pool;
+    private NameCache names;
+    private byte[] nameBytes;
+    private static final byte[] ALL_BYTES = MessageCodec.utf8(Message.ALL);
+    private static final LongAdder RECEIVED = Metrics.counter("incoming.received");
+    private static final LongAdder FORWARDED = Metrics.counter("incoming.forwarded");
+    private static final LongAdder STALE = Metrics.counter("incoming.stale");
+    private static final LongAdder MISADDRESSED =
+            Metrics.counter("incoming.misaddressed");
+    private static final LongAdder DUPLICATE = Metrics.counter("incoming.duplicate");
+    private static final LongAdder MALFORMED = Metrics.counter("incoming.malformed");
 
     /**
      * Constructor
@@ -29,27 +53,78 @@ public class IncomingServer extends Thread {
      * @param sendGroup IP group to which this server will be sending messages
      */
     public IncomingServer(int inPort, int outPort, String name, String receiveGroup, String sendGroup) {
-        super(name);
+        this.name = name;
         listeningPort = inPort;
         sendingPort = outPort;
         this.sendGroup = sendGroup;
         this.receiveGroup = receiveGroup;
-        archive = new MessageArchive();
+        archive = new DuplicateFilter();
+        loop = EventLoop.getShared();
+        pool = BufferPool.getShared();
+        names = new NameCache(256);
+        nameBytes = MessageCodec.utf8(name);
         try {
-            listeningSocket = new MulticastSocket(listeningPort);
-            listeningSocket.joinGroup(InetAddress.getByName(receiveGroup));
-            sendingSocket = new DatagramSocket();
+            listeningChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            listeningChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            listeningChannel.bind(new InetSocketAddress(listeningPort));
+            membership = listeningChannel.join(InetAddress.getByName(receiveGroup),
+                    getMulticastInterface());
+            sendingChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            clientAddress = new InetSocketAddress(
+                    InetAddress.getByName(sendGroup), sendingPort);
         } catch (Exception ex) {
             ex.printStackTrace();
             System.exit(1);
         }
     }
 
+    /**
+     * starts listening by registering this server with the shared event loop,
+     * statistics of its duplicate filter are published through Metrics
+     */
+    public void start() {
+        archiveMetrics = archive.metrics("incoming." + name + ".dedup");
+        Metrics.addSource(archiveMetrics);
+        try {
+            loop.register(listeningChannel, this);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     /**
      * shuts down the server
      */
     public void deactivate() {
-        active = false;
+        if (membership != null) {
+            membership.drop();
+        }
+        loop.close(listeningChannel);
+        try {
+            sendingChannel.close();
+        } catch (IOException err) {
+        }
+        Metrics.removeSource(archiveMetrics);
+        Log.info(getName(), "duplicate filter: ", archive);
+    }
+
+    /**
+     * makes the duplicate filter forget a data message that was dropped by
+     * the client after being forewarded, so its retransmission is accepted.
+     * Could be called from any thread, the filter is updated on the loop
+     * thread before the next received message is checked
+     * @param msg the dropped message
+     */
+    void forget(Message msg) {
+        forgotten.add(msg);
+    }
+
+    /**
+     * @return name of this server
+     */
+    public String getName() {
+        return name;
     }
 
     /**
@@ -61,107 +136,174 @@ public class IncomingServer extends Thread {
     }
 
     /**
-     * Overrides Thread.run() method:<BR>
-     * This method keeps listening on listening port, receiving messages and
-     * foreward messages that shuold be forewarded to the client, or otherwise
-     * blocks them. Message is blocked if it is:<BR>
+     * Called by the event loop whenever messages are waiting on the listening
+     * port:<BR>
+     * This method receives the waiting messages and forewards messages that
+     * shuold be forewarded to the client, or otherwise blocks them. Message is
+     * blocked if it is:<BR>
      * <llist>
      * <li>Outdated</li>
      * <li>Not intended to this recepient</li>
      * <li>Duplicated message</li>
      * </list>
-     * A call to deactivate() stops this method from listening
+     * Binary messages are received into a pooled buffer, checked in place and
+     * forewarded as they are without being decoded, batches are unpacked and
+     * each of their messages is checked and forewarded on its own
+     * @param channel the listening channel
+     * @throws IOException if error occures while receiving or forewarding
      */
-    @Override
-    public void run() {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        DatagramPacket incoming, outgoing;
-
+    public void datagramReady(DatagramChannel channel) throws IOException {
+        Message dropped;
+        while ((dropped = forgotten.poll()) != null) {
+            archive.remove(dropped.getSource(), dropped.getID());
+        }
+        ByteBuffer buffer = pool.acquire();
 
         try {
-            listeningSocket.setSoTimeout(TIMEOUT);
-            while (active) {
-                buffer = new byte[BUFFER_SIZE];
-                incoming = new DatagramPacket(buffer, buffer.length);
-
-                try {
-                    listeningSocket.receive(incoming);
-                } catch (SocketTimeoutException err) {
-                    continue;
+            while (channel.receive(buffer) != null) {
+                buffer.flip();
+                pool.messageReceived();
+                if (MessageCodec.isBatch(buffer)) {
+                    forwardBatch(buffer);
+                } else if (MessageCodec.isBinary(buffer)) {
+                    forwardBinary(buffer);
+                } else {
+                    forwardText(buffer);
                 }
-
-                String data = new String(incoming.getData(), 0, incoming.getLength(), "Windows-1256");
-
-                Message serverMessage = Message.decodeMessage(data);
-                if (serverMessage.getSendingDate() + 3000 <
-                        GregorianCalendar.getInstance().getTimeInMillis() ||
-                        (!serverMessage.getDestination().equals(Message.ALL) &&
-                        !serverMessage.getDestination().equals(getName())) ||
-                        (serverMessage.getType() == Message.DATA &&
-                        archive.exists(serverMessage))) {
-                    continue;
-                }
-
-                if (serverMessage.getType() == Message.DATA) {
-                    archive.add(serverMessage);
-                }
-                buffer = serverMessage.toString().getBytes("Windows-1256");
-                outgoing = new DatagramPacket(buffer,
-                        buffer.length,
-                        InetAddress.getByName(sendGroup),
-                        sendingPort);
-
-                sendingSocket.send(outgoing);
-
+                buffer.clear();
             }
-            listeningSocket.leaveGroup(InetAddress.getByName(receiveGroup));
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
         } finally {
-            listeningSocket.close();
-            if (sendingSocket != null) {
-                sendingSocket.close();
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * forewards every message of a batch that should be forewarded, a
+     * malformed message ends the batch
+     * @param buffer buffer holding a batch of binary messages
+     * @throws IOException if error occures while forewarding
+     */
+    private void forwardBatch(ByteBuffer buffer) throws IOException {
+        int end = buffer.limit();
+        int next = buffer.position() + MessageCodec.BATCH_HEADER_SIZE;
+        while (next < end) {
+            buffer.limit(end).position(next);
+            if (!MessageCodec.isBinary(buffer)) {
+                break;
             }
+            next += MessageCodec.messageLength(buffer);
+            buffer.limit(next);
+            forwardBinary(buffer);
         }
     }
 
+    /**
+     * forewards a binary message if it should be forewarded
+     * @param buffer buffer holding one binary message
+     * @throws IOException if error occures while forewarding
+     */
+    private void forwardBinary(ByteBuffer buffer) throws IOException {
+        RECEIVED.increment();
+        if (accept(buffer)) {
+            sendingChannel.send(buffer, clientAddress);
+            FORWARDED.increment();
+        }
+    }
 
     /**
-     * Private custom class to handle archive of received messages and prevents
-     * duplicated messages to be sent to the client
+     * checks a binary message in place
+     * @param buffer buffer positioned at a binary message
+     * @return true if message should be forewarded to the client
      */
-    private class MessageArchive {
+    private boolean accept(ByteBuffer buffer) {
+        if (MessageCodec.peekSendingDate(buffer) + 3000 < Clock.millis()) {
+            STALE.increment();
+            return false;
+        }
+        if (!MessageCodec.destinationEquals(buffer, ALL_BYTES) &&
+                !MessageCodec.destinationEquals(buffer, nameBytes)) {
+            MISADDRESSED.increment();
+            return false;
+        }
+        if (MessageCodec.peekType(buffer) == Message.DATA) {
+            String source = names.get(buffer, MessageCodec.sourceOffset(buffer),
+                    MessageCodec.sourceLength(buffer));
+            int id = MessageCodec.peekID(buffer);
+            // duplicate fragments are dropped by the client on reassembly
+            if (MessageCodec.isFragment(buffer) ? archive.contains(source, id)
+                    : !archive.add(source, id)) {
+                DUPLICATE.increment();
+                return false;
+            }
+        }
+        return true;
+    }
 
-        Hashtable<String, TreeSet<Integer>> data;
+    /**
+     * decodes, checks and forewards a text encoded message
+     * @param buffer buffer holding a text message, it is reused for encoding
+     * @throws IOException if error occures while forewarding
+     */
+    private void forwardText(ByteBuffer buffer) throws IOException {
+        Message serverMessage = MessageCodec.decode(buffer);
+        buffer.clear();
+        RECEIVED.increment();
+        if (serverMessage == null) {
+            MALFORMED.increment();
+            return;
+        } else if (serverMessage.getSendingDate() + 3000 <
+                Clock.millis()) {
+            STALE.increment();
+            return;
+        } else if (!serverMessage.getDestination().equals(Message.ALL) &&
+                !serverMessage.getDestination().equals(getName())) {
+            MISADDRESSED.increment();
+            return;
+        } else if (serverMessage.getType() == Message.DATA &&
+                !archive.add(serverMessage.getSource(), serverMessage.getID())) {
+            DUPLICATE.increment();
+            return;
+        }
 
-        /**
-         * default constructor
-         */
-        public MessageArchive() {
-            data = new Hashtable<String, TreeSet<Integer>>();
+        try {
+            MessageCodec.encode(serverMessage, buffer);
+        } catch (BufferOverflowException err) {
+            return;
         }
+        buffer.flip();
+        sendingChannel.send(buffer, clientAddress);
+        FORWARDED.increment();
+    }
 
-        /**
-         * adds message to the archive
-         * @param msg message to be added to the archive
-         */
-        public void add(Message msg) {
-            if (!data.containsKey(msg.getSource())) {
-                data.put(msg.getSource(), new TreeSet<Integer>());
+    /**
+     * Utility method to find the network interface used to join multicast
+     * groups, the interface could be forced using the system property
+     * <B>clientserverdemo.interface</B>
+     * @return network interface to join multicast groups on
+     * @throws SocketException if no suitable interface is found
+     */
+    static NetworkInterface getMulticastInterface() throws SocketException {
+        String forced = System.getProperty("clientserverdemo.interface");
+        if (forced != null) {
+            return NetworkInterface.getByName(forced);
+        }
+        NetworkInterface fallback = null;
+        for (NetworkInterface ni : Collections.list(
+                NetworkInterface.getNetworkInterfaces())) {
+            if (ni.isUp() && ni.supportsMulticast()) {
+                if (!ni.isLoopback()) {
+                    return ni;
+                }
+                fallback = ni;
             }
-            data.get(msg.getSource()).add(msg.getID());
         }
-
-        /**
-         * checks whether passed message already exists in the archive using
-         * (source, ID) pair
-         * @param msg message to be checked
-         * @return true if message exists, false otherwise
-         */
-        public boolean exists(Message msg) {
-            TreeSet<Integer> ids = data.get(msg.getSource());
-            return ids != null && ids.contains(msg.getID());
+        if (fallback == null) {
+            fallback = NetworkInterface.getByInetAddress(
+                    InetAddress.getLoopbackAddress());
+        }
+        if (fallback == null) {
+            throw new SocketException("no multicast interface available");
         }
+        return fallback;
     }
 }
@@ -0,0 +1,416 @@
+package clientserverdemo;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a MessageManager. Every change (new peer, sent
+ * message, acknowledgement) is appended to a journal file and forced to disk
+ * in batches every <B>clientserverdemo.journalSync</B> milliseconds, so a
+ * crash loses at most the changes of the last batch. Once the journal grows
+ * beyond <B>clientserverdemo.journalSize</B> bytes it is compacted: a new
+ * journal is started and a snapshot of the manager replaces the old journal.
+ * Status files saved by versions older than the journal are converted when
+ * recovered (see LegacyStatus).
+ * Each record is written as:<BR>
+ * <B>LENGTH CRC32 KIND FIELDS</B><BR>
+ * and replay stops at the first torn or corrupted record, which is cut off
+ * along with everything after it so new records are not appended behind it.
+ * Snapshots are taken while the manager is in use, peers first and then
+ * message stores, so a snapshot could miss part of a change that the
+ * journal holds. Replaying a sent message puts it back in the windows of all
+ * peers and counts its acknowledgements again, and acknowledgements replayed
+ * over a snapshot that already holds them find nothing to acknowledge.
+ * The manager journals each change while holding the lock that orders it,
+ * so a peer is journaled before the messages it misses and a message before
+ * its acknowledgements
+ * @author Yasser Jaffal
+ */
+public class Journal implements Runnable {
+
+    public static final long SYNC_INTERVAL =
+            Long.getLong("clientserverdemo.journalSync", 50);
+    public static final long MAX_SIZE =
+            Long.getLong("clientserverdemo.journalSize", 8 << 20);
+    private static final byte PEER = 'P';
+    private static final byte MESSAGE = 'M';
+    private static final byte ACK = 'A';
+    private static final byte ACK_RANGE = 'R';
+    private static final byte ACK_BITMAP = 'B';
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static ScheduledExecutorService executor;
+    private final File snapshot, log, previous, temporary;
+    private final MessageManager manager;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private long size, written;
+    private boolean dirty;
+    private ScheduledFuture<?> flusher;
+    private final Object compaction = new Object();
+
+    /**
+     * Constructor, starts journaling changes of the passed manager
+     * @param snapshot snapshot file, journal files are kept next to it
+     * @param manager manager whose changes are journaled
+     * @throws IOException if journal file could not be opened
+     */
+    public Journal(File snapshot, MessageManager manager) throws IOException {
+        this.snapshot = snapshot;
+        this.manager = manager;
+        log = new File(snapshot.getPath() + ".log");
+        previous = new File(snapshot.getPath() + ".log.prev");
+        temporary = new File(snapshot.getPath() + ".tmp");
+        open();
+        manager.setJournal(this);
+        flusher = getExecutor().scheduleWithFixedDelay(this, SYNC_INTERVAL,
+                SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return executor shared by journals of all clients in this process
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Threads.newScheduledExecutor("journal", 1);
+        }
+        return executor;
+    }
+
+    /**
+     * restores a manager from its snapshot and journal files
+     * @param snapshot snapshot file, journal files are kept next to it
+     * @return restored manager, a new one if there is nothing to restore
+     * @throws IOException if snapshot could not be read
+     * @throws ClassNotFoundException if snapshot holds an unknown class
+     */
+    public static MessageManager recover(File snapshot)
+            throws IOException, ClassNotFoundException {
+        MessageManager result;
+        if (snapshot.exists()) {
+            ObjectInputStream in = new LegacyStatus.Input(
+                    new BufferedInputStream(new FileInputStream(snapshot)));
+            try {
+                Object status = in.readObject();
+                result = status instanceof LegacyStatus
+                        ? ((LegacyStatus) status).toManager()
+                        : (MessageManager) status;
+            } finally {
+                in.close();
+            }
+        } else {
+            result = new MessageManager();
+        }
+        replay(new File(snapshot.getPath() + ".log.prev"), result);
+        replay(new File(snapshot.getPath() + ".log"), result);
+        return result;
+    }
+
+    /**
+     * utility method to apply journaled changes to a manager and cut off
+     * the journal after its last valid record
+     */
+    private static void replay(File journal, MessageManager manager)
+            throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal)));
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > 64 << 20) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(data)), manager);
+                valid += length + 8;
+            }
+        } catch (EOFException err) {
+            // torn record at the end of the journal
+        } finally {
+            in.close();
+        }
+        if (valid < journal.length()) {
+            System.err.println("dropping " + (journal.length() - valid) +
+                    " bytes after the last valid record of " + journal);
+            RandomAccessFile file = new RandomAccessFile(journal, "rw");
+            try {
+                file.setLength(valid);
+                file.getChannel().force(false);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * utility method to apply a single record to a manager
+     */
+    private static void apply(DataInputStream in, MessageManager manager)
+            throws IOException {
+        byte kind = in.readByte();
+        if (kind == PEER) {
+            manager.addPeer(readString(in));
+        } else if (kind == MESSAGE) {
+            int id = in.readInt();
+            long creationDate = in.readLong();
+            long sendingDate = in.readLong();
+            int type = in.readByte();
+            String source = readString(in);
+            String dest = readString(in);
+            String content = readString(in);
+            manager.reserveMessageID(id);
+            manager.restoreMessage(new Message(id, creationDate, sendingDate,
+                    source, dest, content, type));
+        } else if (kind == ACK) {
+            manager.acknowledge(readString(in), in.readInt());
+        } else if (kind == ACK_RANGE) {
+            manager.acknowledgeRange(readString(in), in.readInt(), in.readInt());
+        } else if (kind == ACK_BITMAP) {
+            manager.acknowledgeBitmap(readString(in), in.readInt(), in.readLong());
+        }
+    }
+
+    /**
+     * journals a new peer
+     * @param name name of the peer
+     */
+    public synchronized void peerAdded(String name) {
+        try {
+            begin(PEER);
+            writeString(name);
+            end();
+        } catch (IOException err) {
+            failed(err);
+        }
+    }
+
+    /**
+     * journals a sent message
+     * @param msg the message
+     */
+    public synchronized void messageAdded(Message msg) {
+        try {
+            begin(MESSAGE);
+            fields.writeInt(msg.getID());
+            fields.writeLong(msg.getCreationDate());
+            fields.writeLong(msg.getSendingDate());
+            fields.writeByte(msg.getType());
+            writeString(msg.getSource());
+            writeString(msg.getDestination());
+            writeString(msg.getContent());
+            end();
+        } catch (IOException err) {
+            failed(err);
+        }
+    }
+
+    /**
+     * journals an acknowledgement
+     * @param peer acknowledging peer
+     * @param id acknowledged ID
+     */
+    public synchronized void acknowledged(String peer, int id) {
+        try {
+            begin(ACK);
+            writeString(peer);
+            fields.writeInt(id);
+            end();
+        } catch (IOException err) {
+            failed(err);
+        }
+    }
+
+    /**
+     * journals a range acknowledgement
+     * @param peer acknowledging peer
+     * @param from first acknowledged ID
+     * @param to last acknowledged ID
+     */
+    public synchronized void acknowledgedRange(String peer, int from, int to) {
+        try {
+            begin(ACK_RANGE);
+            writeString(peer);
+            fields.writeInt(from);
+            fields.writeInt(to);
+            end();
+        } catch (IOException err) {
+            failed(err);
+        }
+    }
+
+    /**
+     * journals a selective acknowledgement bitmap
+     * @param peer acknowledging peer
+     * @param firstID ID acknowledged by bit 0
+     * @param bitmap acknowledged IDs
+     */
+    public synchronized void acknowledgedBitmap(String peer, int firstID, long bitmap) {
+        try {
+            begin(ACK_BITMAP);
+            writeString(peer);
+            fields.writeInt(firstID);
+            fields.writeLong(bitmap);
+            end();
+        } catch (IOException err) {
+            failed(err);
+        }
+    }
+
+    /**
+     * Forces journaled changes to disk, compacting the journal if it grew
+     * too large
+     */
+    public void run() {
+        try {
+            sync();
+            boolean full;
+            synchronized (this) {
+                full = size > MAX_SIZE;
+            }
+            if (full) {
+                compact();
+            }
+        } catch (IOException err) {
+            err.printStackTrace();
+        }
+    }
+
+    /**
+     * writes a snapshot of the manager and drops the journaled changes it
+     * covers
+     * @throws IOException if snapshot could not be written
+     */
+    public void compact() throws IOException {
+        synchronized (compaction) {
+            // a previous journal is left only if the last snapshot failed,
+            // it is still needed until a snapshot succeeds
+            if (!previous.exists()) {
+                synchronized (this) {
+                    out.close();
+                    if (!log.renameTo(previous)) {
+                        throw new IOException("unable to rotate " + log);
+                    }
+                    open();
+                }
+            }
+            writeSnapshot();
+            previous.delete();
+        }
+    }
+
+    /**
+     * utility method to replace the snapshot file with a new snapshot
+     */
+    private void writeSnapshot() throws IOException {
+        FileOutputStream stream = new FileOutputStream(temporary);
+        ObjectOutputStream snap = new ObjectOutputStream(
+                new BufferedOutputStream(stream));
+        snap.writeObject(manager);
+        snap.flush();
+        stream.getChannel().force(false);
+        snap.close();
+        snapshot.delete();
+        if (!temporary.renameTo(snapshot)) {
+            throw new IOException("unable to replace " + snapshot);
+        }
+        synchronized (this) {
+            written += snapshot.length();
+        }
+    }
+
+    /**
+     * stops journaling and compacts the journal into a snapshot
+     * @throws IOException if snapshot could not be written
+     */
+    public void close() throws IOException {
+        flusher.cancel(false);
+        manager.setJournal(null);
+        compact();
+        synchronized (this) {
+            out.close();
+        }
+        log.delete();
+    }
+
+    /**
+     * @return bytes written to journal and snapshot files so far
+     */
+    public synchronized long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * utility method to force written records to disk
+     */
+    private void sync() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            out.flush();
+            dirty = false;
+            channel = file.getChannel();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * utility method to open the journal file for appending
+     */
+    private void open() throws IOException {
+        file = new FileOutputStream(log, true);
+        out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        size = log.length();
+    }
+
+    private void begin(byte kind) throws IOException {
+        record.reset();
+        fields.writeByte(kind);
+    }
+
+    private void end() throws IOException {
+        byte[] data = record.toByteArray();
+        crc.reset();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+        size += data.length + 8;
+        written += data.length + 8;
+        dirty = true;
+    }
+
+    private void failed(IOException err) {
+        System.err.println("unable to journal: " + err.getMessage());
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(UTF8);
+        fields.writeInt(bytes.length);
+        fields.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
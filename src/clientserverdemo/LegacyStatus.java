@@ -0,0 +1,103 @@
+package clientserverdemo;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Status file saved by versions older than the Journal: a serialized
+ * MessageManager holding all sent messages in a set and the missed message
+ * IDs of every peer in a TreeSet. Such a file is read with LegacyStatus.Input,
+ * which reads the old classes into this class, and converted with
+ * toManager(). Fields must keep the names and types of the old classes
+ * @author Yasser Jaffal
+ */
+class LegacyStatus implements Serializable {
+
+    // computed value of the old MessageManager
+    private static final long serialVersionUID = -4987545491908017028L;
+    private Hashtable<String, Peer> peers;
+    private Set<Message> sentMessages;
+    int nextMessageID;
+
+    /**
+     * missed messages and tries of a single peer, the old
+     * MessageManager.PeerMessages
+     */
+    private class Peer implements Serializable {
+
+        // computed value of the old MessageManager.PeerMessages
+        private static final long serialVersionUID = -7626670278768910282L;
+
+        public int tries;
+        public TreeSet<Integer> missed;
+    }
+
+    /**
+     * converts the old status to a manager
+     * @return manager with the same peers, missed messages and tries
+     */
+    MessageManager toManager() {
+        MessageManager manager = new MessageManager();
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            manager.addPeer(entry.getKey());
+            for (int i = 0; i < entry.getValue().tries; i++) {
+                manager.increaseTries(entry.getKey());
+            }
+        }
+        Message[] messages = sentMessages.toArray(new Message[sentMessages.size()]);
+        Arrays.sort(messages, new Comparator<Message>() {
+
+            public int compare(Message m1, Message m2) {
+                return m1.getID() < m2.getID() ? -1 : m1.getID() == m2.getID() ? 0 : 1;
+            }
+        });
+        manager.reserveMessageID(nextMessageID - 1);
+        for (Message msg : messages) {
+            manager.reserveMessageID(msg.getID());
+            manager.addMessage(msg);
+            for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+                if (!entry.getValue().missed.contains(msg.getID())) {
+                    manager.acknowledge(entry.getKey(), msg.getID());
+                }
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Object stream that reads the old MessageManager classes as
+     * LegacyStatus and LegacyStatus.Peer, and all other classes as usual
+     */
+    static class Input extends ObjectInputStream {
+
+        private static final ObjectStreamClass MANAGER =
+                ObjectStreamClass.lookup(LegacyStatus.class);
+        private static final ObjectStreamClass PEER =
+                ObjectStreamClass.lookup(Peer.class);
+
+        /**
+         * Constructor
+         * @param in stream to read from
+         * @throws IOException if stream header could not be read
+         */
+        Input(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+                throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            String name = desc.getName();
+            long uid = desc.getSerialVersionUID();
+            if (name.equals(MessageManager.class.getName()) &&
+                    uid == MANAGER.getSerialVersionUID()) {
+                return MANAGER;
+            } else if (name.equals(MessageManager.class.getName() + "$PeerMessages") &&
+                    uid == PEER.getSerialVersionUID()) {
+                return PEER;
+            }
+            return desc;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package clientserverdemo;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: runs N clients on 127.0.0.1 in this process,
+ * sends data messages of a given size at a given total rate from all of them
+ * in turn, and optionally kills and restarts a random client every few
+ * seconds so its missed messages have to be retransmitted. At the end it
+ * waits for retransmissions and reports throughput, end-to-end latency
+ * percentiles, loss (messages never received by a peer that should have
+ * received them) and retransmissions per sent message. Options:<BR>
+ * <B>-endpoints N</B> number of clients (default 4)<BR>
+ * <B>-rate R</B> messages per second sent by all clients together (default 1000)<BR>
+ * <B>-payload B</B> message size in characters (default 64)<BR>
+ * <B>-duration S</B> seconds to send for (default 10)<BR>
+ * <B>-restart S</B> seconds between client restarts, 0 for none (default 0)<BR>
+ * <B>-drain S</B> seconds to wait for retransmissions at the end (default 10)<BR>
+ * Client status files are kept in a temporary directory and logging is off
+ * unless <B>clientserverdemo.logSink</B> is set
+ * @author Yasser Jaffal
+ */
+public class LoadGenerator {
+
+    private final int endpoints, rate, payload, duration, restart, drain;
+    private final String[] names;
+    private final AtomicReferenceArray<ClientEngine> engines;
+    private final ConcurrentHashMap<String, BitSet> received =
+            new ConcurrentHashMap<String, BitSet>();
+    private final AtomicLong[] sent;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long restarts;
+
+    /**
+     * Constructor
+     * @param endpoints number of clients
+     * @param rate messages per second sent by all clients together
+     * @param payload message size in characters
+     * @param duration seconds to send for
+     * @param restart seconds between client restarts, 0 for none
+     * @param drain seconds to wait for retransmissions at the end
+     */
+    public LoadGenerator(int endpoints, int rate, int payload, int duration,
+            int restart, int drain) {
+        this.endpoints = endpoints;
+        this.rate = rate;
+        this.payload = payload;
+        this.duration = duration;
+        this.restart = restart;
+        this.drain = drain;
+        names = new String[endpoints];
+        engines = new AtomicReferenceArray<ClientEngine>(endpoints);
+        sent = new AtomicLong[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            names[i] = "L" + i;
+            sent[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * main method
+     * @param args options, see class description
+     * @throws Exception if load could not be generated
+     */
+    public static void main(String[] args) throws Exception {
+        int endpoints = 4, rate = 1000, payload = 64, duration = 10,
+                restart = 0, drain = 10;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("-endpoints")) {
+                endpoints = value;
+            } else if (args[i].equals("-rate")) {
+                rate = value;
+            } else if (args[i].equals("-payload")) {
+                payload = value;
+            } else if (args[i].equals("-duration")) {
+                duration = value;
+            } else if (args[i].equals("-restart")) {
+                restart = value;
+            } else if (args[i].equals("-drain")) {
+                drain = value;
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        if (System.getProperty("clientserverdemo.logSink") == null) {
+            System.setProperty("clientserverdemo.logSink", "none");
+        }
+        File home = File.createTempFile("csdemo-", "");
+        home.delete();
+        home.mkdirs();
+        System.setProperty("user.home", home.getPath());
+
+        new LoadGenerator(endpoints, rate, payload, duration, restart, drain).run();
+
+        for (File f : home.listFiles()) {
+            f.delete();
+        }
+        home.delete();
+        System.exit(0);
+    }
+
+    /**
+     * starts the clients, generates the load and prints the report
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        for (int i = 0; i < endpoints; i++) {
+            engines.set(i, start(i));
+        }
+        // let the clients learn about each other before counting losses
+        Thread.sleep(2000);
+
+        char[] text = new char[payload];
+        Arrays.fill(text, 'x');
+        String content = new String(text);
+        Random random = new Random();
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.SECONDS.toNanos(duration);
+        long nextSend = begin;
+        long nextRestart = restart > 0 ? begin + TimeUnit.SECONDS.toNanos(restart) : Long.MAX_VALUE;
+        long nextReport = begin + TimeUnit.SECONDS.toNanos(1);
+        int down = -1;
+        long upAgain = 0;
+        int turn = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (now >= nextRestart && down < 0 && endpoints > 1) {
+                down = random.nextInt(endpoints);
+                ClientEngine engine = engines.getAndSet(down, null);
+                engine.close();
+                upAgain = now + TimeUnit.SECONDS.toNanos(restart) / 2;
+                nextRestart = now + TimeUnit.SECONDS.toNanos(restart);
+            }
+            if (down >= 0 && now >= upAgain) {
+                engines.set(down, start(down));
+                restarts++;
+                down = -1;
+            }
+            if (now >= nextReport) {
+                System.out.println("sent " + getSent() + ", delivered " +
+                        delivered.get() + ", p99 " + latency.getPercentile(99) + " ms");
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            if (now < nextSend) {
+                LockSupport.parkNanos(Math.min(nextSend - now, 1000000L));
+                continue;
+            }
+            int index = turn++ % endpoints;
+            ClientEngine engine = engines.get(index);
+            if (engine != null) {
+                try {
+                    engine.send(content);
+                    sent[index].incrementAndGet();
+                } catch (Exception err) {
+                    err.printStackTrace();
+                }
+            }
+            nextSend += period;
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (down >= 0) {
+            engines.set(down, start(down));
+            restarts++;
+        }
+
+        long expected = getSent() * (endpoints - 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+        while (delivered.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        report(elapsed, expected);
+        for (int i = 0; i < endpoints; i++) {
+            engines.get(i).close();
+        }
+    }
+
+    /**
+     * utility method to print the final report
+     */
+    private void report(long elapsed, long expected) {
+        long sentCount = getSent();
+        long resent = Metrics.counter("retransmit.messages").sum();
+        double seconds = elapsed / 1e9;
+        System.out.println("endpoints " + endpoints + ", payload " + payload +
+                ", target rate " + rate + "/s, restarts " + restarts);
+        System.out.printf("sent %d messages in %.1f s (%.0f/s), %d deliveries (%.0f/s)%n",
+                sentCount, seconds, sentCount / seconds, delivered.get(),
+                delivered.get() / seconds);
+        System.out.println("latency ms: p50 " + latency.getPercentile(50) +
+                ", p99 " + latency.getPercentile(99) + ", p999 " +
+                latency.getPercentile(99.9) + ", max " + latency.getMax());
+        System.out.printf("loss %.4f%% (%d of %d deliveries), duplicates %d%n",
+                expected == 0 ? 0 : 100.0 * (expected - delivered.get()) / expected,
+                Math.max(0, expected - delivered.get()), expected,
+                duplicates.get());
+        System.out.printf("retransmissions %d (%.4f per sent message)%n", resent,
+                sentCount == 0 ? 0 : (double) resent / sentCount);
+    }
+
+    /**
+     * utility method to start the client at the passed index
+     */
+    private ClientEngine start(int index) {
+        final String name = names[index];
+        ClientEngine engine = new ClientEngine(name, "127.0.0.1",
+                new ClientEngine.Listener() {
+
+                    public void messageReceived(Message msg) {
+                        if (!msg.getSource().equals(name)) {
+                            received(name, msg);
+                        }
+                    }
+
+                    public void logged(String message) {
+                    }
+                });
+        engine.start();
+        return engine;
+    }
+
+    /**
+     * utility method to record a message received by the named client
+     */
+    private void received(String receiver, Message msg) {
+        String key = receiver + ":" + msg.getSource();
+        BitSet ids = received.get(key);
+        if (ids == null) {
+            BitSet existing = received.putIfAbsent(key, ids = new BitSet());
+            if (existing != null) {
+                ids = existing;
+            }
+        }
+        boolean duplicate;
+        synchronized (ids) {
+            duplicate = ids.get(msg.getID());
+            ids.set(msg.getID());
+        }
+        if (duplicate) {
+            duplicates.incrementAndGet();
+        } else {
+            delivered.incrementAndGet();
+            latency.record(System.currentTimeMillis() - msg.getCreationDate());
+        }
+    }
+
+    private long getSent() {
+        long total = 0;
+        for (AtomicLong count : sent) {
+            total += count.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,357 @@
+package clientserverdemo;
+
+import java.io.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger of the whole process. Log calls never block and leave
+ * formatting to a single "logger" thread: they claim a slot of a fixed ring
+ * of <B>clientserverdemo.logBuffer</B> entries (default 8192) and store the
+ * logged values, lines are formatted and written to the sinks in batches by
+ * the logger thread, which sleeps until a line is logged. Values that could
+ * change before they are formatted are taken as they are at the time of the
+ * call: messages are copied and any other value but strings and numbers is
+ * converted to text. If the ring is full the line is dropped and counted. Only lines at or above
+ * <B>clientserverdemo.logLevel</B> (trace, info, warning or off, default
+ * info) are logged, every sent and received message is traced at trace
+ * level. Default sink is read from <B>clientserverdemo.logSink</B>:
+ * console (default), file (rolling file named by <B>clientserverdemo.logFile</B>,
+ * rolled over every <B>clientserverdemo.logFileSize</B> bytes) or none, more
+ * sinks could be added by addSink()
+ * @author Yasser Jaffal
+ */
+public final class Log {
+
+    public static final int TRACE = 0;
+    public static final int INFO = 1;
+    public static final int WARNING = 2;
+    public static final int OFF = 3;
+    public static final int LEVEL = parseLevel(
+            System.getProperty("clientserverdemo.logLevel", "info"));
+    private static final int CAPACITY = roundUp(
+            Integer.getInteger("clientserverdemo.logBuffer", 8192));
+    private static final int BATCH_SIZE = 64 << 10;
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final String[] sources = new String[CAPACITY];
+    private static final String[] texts = new String[CAPACITY];
+    private static final Object[] args = new Object[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long tail;
+    private static volatile boolean idle;
+    private static final CopyOnWriteArrayList<Sink> sinks =
+            new CopyOnWriteArrayList<Sink>();
+    private static final StringBuilder batch = new StringBuilder();
+    private static Thread writer;
+
+    /**
+     * Destination of formatted log lines
+     */
+    public interface Sink {
+
+        /**
+         * called on the logger thread with a batch of lines
+         * @param lines one or more lines, each ending with a new line
+         */
+        void write(String lines);
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+        String sink = System.getProperty("clientserverdemo.logSink", "console");
+        if (sink.equals("console")) {
+            sinks.add(new Sink() {
+
+                public void write(String lines) {
+                    System.out.print(lines);
+                    System.out.flush();
+                }
+            });
+        } else if (sink.equals("file")) {
+            sinks.add(new RollingFile(new File(System.getProperty(
+                    "clientserverdemo.logFile", "csdemo.log")),
+                    Long.getLong("clientserverdemo.logFileSize", 8 << 20)));
+        }
+        if (LEVEL < OFF) {
+            writer = new Thread("logger") {
+
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * logs a line at trace level, formatted as <B>"source" text arg</B>
+     * @param source name of the logging client
+     * @param text text of the line
+     * @param arg value appended to the line as it is now, could be null
+     */
+    public static void trace(String source, String text, Object arg) {
+        if (TRACE >= LEVEL) {
+            publish(source, text, arg);
+        }
+    }
+
+    /**
+     * logs a line at info level, formatted as <B>"source" text</B>
+     * @param source name of the logging client, could be null
+     * @param text text of the line
+     */
+    public static void info(String source, String text) {
+        if (INFO >= LEVEL) {
+            publish(source, text, null);
+        }
+    }
+
+    /**
+     * logs a line at info level, formatted as <B>"source" text arg</B>
+     * @param source name of the logging client, could be null
+     * @param text text of the line
+     * @param arg value appended to the line as it is now, could be null
+     */
+    public static void info(String source, String text, Object arg) {
+        if (INFO >= LEVEL) {
+            publish(source, text, arg);
+        }
+    }
+
+    /**
+     * logs a line at warning level, formatted as <B>"source" WARNING: text</B>
+     * @param source name of the logging client, could be null
+     * @param text text of the line
+     */
+    public static void warning(String source, String text) {
+        if (WARNING >= LEVEL) {
+            publish(source, "WARNING: " + text, null);
+        }
+    }
+
+    /**
+     * adds a sink that receives all lines written from now on
+     * @param sink the sink
+     */
+    public static void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * @param sink sink to remove
+     */
+    public static void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * @return number of lines dropped because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * waits at most one second until all lines logged so far are written
+     */
+    public static void flush() {
+        long target = head.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (writer != null && writer.isAlive() && tail < target &&
+                System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * utility method to store a line in the next free slot
+     */
+    private static void publish(String source, String text, Object arg) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int i = (int) seq & (CAPACITY - 1);
+        sources[i] = source;
+        texts[i] = text;
+        args[i] = snapshot(arg);
+        published.set(i, seq);
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * utility method to take a logged value as it is at the time of the
+     * call, messages are copied instead of formatted so logging a message
+     * stays cheap for the caller
+     */
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Number) {
+            return arg;
+        }
+        if (arg instanceof Message) {
+            Message m = (Message) arg;
+            Message copy = new Message(m.getID(), m.getCreationDate(),
+                    m.getSendingDate(), m.getSource(), m.getDestination(),
+                    m.getContent(), m.getType());
+            copy.setAckRange(m.getAckFrom(), m.getAckBitmap());
+            return copy;
+        }
+        return String.valueOf(arg);
+    }
+
+    /**
+     * Keeps formatting published lines and writing them in batches, runs on
+     * the logger thread. Once every line is written the thread parks until a
+     * line is published: it raises the idle flag and checks for a line once
+     * more before parking, and publishers check the flag after publishing,
+     * so either one sees the other and no line is left waiting
+     */
+    private static void drain() {
+        long reported = 0;
+        while (true) {
+            long seq = tail;
+            int i = (int) seq & (CAPACITY - 1);
+            if (published.get(i) != seq) {
+                long lost = dropped.get();
+                if (lost != reported) {
+                    batch.append("WARNING: ").append(lost - reported)
+                            .append(" log lines dropped\n");
+                    reported = lost;
+                }
+                write();
+                idle = true;
+                if (published.get(i) != seq) {
+                    LockSupport.park();
+                }
+                idle = false;
+                continue;
+            }
+            if (sources[i] != null) {
+                batch.append('"').append(sources[i]).append("\" ");
+            }
+            batch.append(texts[i]);
+            try {
+                if (args[i] != null) {
+                    batch.append(args[i]);
+                }
+            } catch (RuntimeException err) {
+                batch.append(err);
+            }
+            batch.append('\n');
+            sources[i] = null;
+            texts[i] = null;
+            args[i] = null;
+            tail = seq + 1;
+            if (batch.length() >= BATCH_SIZE) {
+                write();
+            }
+        }
+    }
+
+    /**
+     * utility method to pass the current batch to all sinks
+     */
+    private static void write() {
+        if (batch.length() == 0) {
+            return;
+        }
+        String lines = batch.toString();
+        batch.setLength(0);
+        for (Sink sink : sinks) {
+            try {
+                sink.write(lines);
+            } catch (RuntimeException err) {
+                err.printStackTrace();
+            }
+        }
+    }
+
+    private static int parseLevel(String name) {
+        if (name.equalsIgnoreCase("trace")) {
+            return TRACE;
+        } else if (name.equalsIgnoreCase("warning")) {
+            return WARNING;
+        } else if (name.equalsIgnoreCase("off")) {
+            return OFF;
+        }
+        return INFO;
+    }
+
+    private static int roundUp(int size) {
+        int n = 64;
+        while (n < size) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Sink that writes to a file, the file is renamed to a backup (replacing
+     * the previous backup) once it grows beyond a given size
+     */
+    static class RollingFile implements Sink {
+
+        private final File file, backup;
+        private final long maxSize;
+        private Writer out;
+        private long size;
+
+        /**
+         * Constructor
+         * @param file file to write lines to
+         * @param maxSize size in bytes after which file is rolled over
+         */
+        RollingFile(File file, long maxSize) {
+            this.file = file;
+            this.maxSize = maxSize;
+            backup = new File(file.getPath() + ".1");
+        }
+
+        public void write(String lines) {
+            try {
+                if (out == null) {
+                    out = new OutputStreamWriter(
+                            new FileOutputStream(file, true), "UTF-8");
+                    size = file.length();
+                }
+                out.write(lines);
+                out.flush();
+                size += lines.length();
+                if (size > maxSize) {
+                    out.close();
+                    out = null;
+                    backup.delete();
+                    file.renameTo(backup);
+                }
+            } catch (IOException err) {
+                System.err.println("unable to log: " + err.getMessage());
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ package clientserverdemo;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
 import javax.swing.*;
 import java.util.*;
 
@@ -19,6 +20,8 @@ public class Main extends JFrame implements ActionListener, WindowListener {
     JTextField nameField;
     JTextArea logArea;
     static final int GROUP_BASE = 1;
+    public static final int LOG_LINES =
+            Integer.getInteger("clientserverdemo.logLines", 2000);
     TreeSet<ClientManager> clients;
 
     /**
@@ -61,15 +64,98 @@ public class Main extends JFrame implements ActionListener, WindowListener {
         }
 */
         clients = new TreeSet<ClientManager>();
+        Log.addSink(new Log.Sink() {
+
+            public void write(final String lines) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        appendLog(lines);
+                    }
+                });
+            }
+        });
         setVisible(true);
     }
 
+    /**
+     * appends lines to the log area, dropping the oldest lines beyond
+     * LOG_LINES, called on the Swing event thread
+     * @param lines lines to append
+     */
+    private void appendLog(String lines) {
+        logArea.append(lines);
+        int excess = logArea.getLineCount() - 1 - LOG_LINES;
+        if (excess > 0) {
+            try {
+                logArea.getDocument().remove(0,
+                        logArea.getLineStartOffset(excess));
+            } catch (javax.swing.text.BadLocationException err) {
+            }
+        }
+        logArea.setCaretPosition(logArea.getDocument().getLength());
+    }
+
     /**
      * main method
-     * @param args not used
+     * @param args empty to run the GUI, or <B>-headless NAME...</B> to run
+     * the named clients without any window: every line read from the
+     * standard input is sent by the first client (except <B>/metrics</B>,
+     * which prints a snapshot of Metrics), and all clients are closed at the
+     * end of the input
      */
     public static void main(String[] args) {
-        new Main();
+        if (args.length > 0 && args[0].equals("-headless")) {
+            runHeadless(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            new Main();
+        }
+    }
+
+    /**
+     * Runs clients without GUI, received messages and logs are printed to
+     * the standard output
+     * @param names names of the clients to run
+     */
+    private static void runHeadless(String[] names) {
+        ArrayList<ClientEngine> engines = new ArrayList<ClientEngine>();
+        for (final String name : names) {
+            ClientEngine engine = new ClientEngine(name, "127.0.0.1",
+                    new ClientEngine.Listener() {
+
+                        public void messageReceived(Message msg) {
+                            System.out.println("[" + name + "] " +
+                                    msg.getSource() + ": " + msg.getContent());
+                        }
+
+                        public void logged(String message) {
+                            // written by the Log
+                        }
+                    });
+            engine.start();
+            engines.add(engine);
+        }
+        if (engines.isEmpty()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(System.in));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().equals("/metrics")) {
+                    System.out.print(Metrics.snapshot());
+                } else if (line.trim().length() > 0) {
+                    engines.get(0).send(line);
+                }
+            }
+        } catch (IOException err) {
+            err.printStackTrace();
+        }
+        for (ClientEngine engine : engines) {
+            engine.close();
+        }
+        Log.flush();
     }
 
     /**
@@ -114,7 +200,7 @@ public class Main extends JFrame implements ActionListener, WindowListener {
             } else {
                 logArea.append("Invalid client name\n");
             }
-            logArea.setCaretPosition(logArea.getText().length());
+            logArea.setCaretPosition(logArea.getDocument().getLength());
         } else if (e.getSource() == clear) {
             logArea.setText("");
         }
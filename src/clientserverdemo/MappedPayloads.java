@@ -0,0 +1,149 @@
+package clientserverdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Memory mapped file that holds encoded messages off the heap. The file is
+ * split into segments that are filled one after the other, a stored message
+ * is identified by a handle (segment index and offset). Each segment counts
+ * its live messages and is reused as a whole once all of them are freed.
+ * Segment size is read from the system property
+ * <B>clientserverdemo.mappedSegmentSize</B>, the file is created in
+ * <B>clientserverdemo.mappedDir</B> (defaults to the temporary directory) and
+ * deleted on exit. Thread safe
+ * @author Yasser Jaffal
+ */
+class MappedPayloads {
+
+    public static final int SEGMENT_SIZE =
+            Integer.getInteger("clientserverdemo.mappedSegmentSize", 16 << 20);
+    private final FileChannel channel;
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private final ArrayList<Segment> free = new ArrayList<Segment>();
+    private Segment active;
+
+    /**
+     * Part of the file mapped as a single buffer
+     */
+    private static class Segment {
+
+        final int index;
+        final MappedByteBuffer buffer;
+        int live;
+
+        Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param name prefix of the file name
+     * @throws IOException if file could not be created
+     */
+    public MappedPayloads(String name) throws IOException {
+        File dir = new File(System.getProperty("clientserverdemo.mappedDir",
+                System.getProperty("java.io.tmpdir")));
+        File file = File.createTempFile(name + "-", ".outbox", dir);
+        file.deleteOnExit();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * stores a message
+     * @param msg message to store
+     * @return handle of the stored message, -1 if message is larger than a
+     * segment and should be kept elsewhere
+     * @throws IOException if file could not be extended
+     */
+    public synchronized long write(Message msg) throws IOException {
+        if (active == null) {
+            active = allocate();
+        }
+        try {
+            return put(active, msg);
+        } catch (BufferOverflowException err) {
+            Segment previous = active;
+            active = allocate();
+            if (previous.live == 0) {
+                recycle(previous);
+            }
+        }
+        try {
+            return put(active, msg);
+        } catch (BufferOverflowException err) {
+            return -1;
+        }
+    }
+
+    /**
+     * reads a stored message back
+     * @param handle handle returned by write()
+     * @return a new copy of the stored message
+     */
+    public synchronized Message read(long handle) {
+        ByteBuffer src = segments.get((int) (handle >>> 32)).buffer.duplicate();
+        src.limit(src.capacity()).position((int) handle);
+        return MessageCodec.decodeBinary(src);
+    }
+
+    /**
+     * frees a stored message, its segment is reused once all its messages
+     * are freed
+     * @param handle handle returned by write()
+     */
+    public synchronized void free(long handle) {
+        Segment segment = segments.get((int) (handle >>> 32));
+        if (--segment.live == 0 && segment != active) {
+            recycle(segment);
+        }
+    }
+
+    /**
+     * @return number of bytes held by segments that are still in use
+     */
+    public synchronized long getUsedSize() {
+        return (long) (segments.size() - free.size()) * SEGMENT_SIZE;
+    }
+
+    /**
+     * utility method to encode a message at the end of a segment
+     */
+    private long put(Segment segment, Message msg) {
+        int offset = segment.buffer.position();
+        MessageCodec.encodeBinary(msg, segment.buffer);
+        segment.live++;
+        return ((long) segment.index << 32) | offset;
+    }
+
+    /**
+     * utility method to get an empty segment, mapping a new one if none
+     * is free
+     */
+    private Segment allocate() throws IOException {
+        if (!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        Segment segment = new Segment(segments.size(), channel.map(
+                FileChannel.MapMode.READ_WRITE,
+                (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * utility method to make an empty segment available again
+     */
+    private void recycle(Segment segment) {
+        segment.buffer.clear();
+        free.add(segment);
+    }
+}
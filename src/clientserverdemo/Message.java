@@ -1,19 +1,24 @@
 package clientserverdemo;
 
 import java.io.Serializable;
-import java.util.*;
+
 /**
  * this class represents a communication message
  * @author Yasser Jaffal
  */
 public class Message implements Serializable, Comparable<Message> {
 
+    // keep the first release's computed value, fields added since then
+    // (the range of a cumulative acknowledgement) are compatible additions
+    private static final long serialVersionUID = 3175887298194092464L;
     public static final int COMMAND = 0;
     public static final int ACKNOWLEDGE = 1;
     public static final int DATA = 2;
+    public static final int CUMULATIVE_ACK = 3;
     
     public static final String ALL = "ALL";
     public static final String SYNC = "SYNC";
+    public static final String FRAGMENTS = "FRAGMENTS";
     
     private String source, dest;
     private int type;
@@ -21,6 +26,8 @@ public class Message implements Serializable, Comparable<Message> {
     private int id;
     private long creationDate;
     private long sendingDate;
+    private int ackFrom;
+    private long ackBitmap;
     /**
      * Constructor
      * @param source Name of the source client
@@ -33,8 +40,29 @@ public class Message implements Serializable, Comparable<Message> {
         setContent(content);
         setSource(source);
         setDestination(dest);
-        creationDate = GregorianCalendar.getInstance().getTimeInMillis();
-        sendingDate = GregorianCalendar.getInstance().getTimeInMillis();
+        creationDate = Clock.millis();
+        sendingDate = creationDate;
+    }
+
+    /**
+     * Constructor used by decoders to restore a message with all its fields
+     * @param id message ID
+     * @param creationDate creation date of the message
+     * @param sendingDate last sending date of the message
+     * @param source Name of the source client
+     * @param dest name of destination client
+     * @param content content of this message
+     * @param type message type: DATA, ACKNOWLEDGE, or COMMAND
+     */
+    Message(int id, long creationDate, long sendingDate,
+            String source, String dest, String content, int type) {
+        setType(type);
+        setContent(content);
+        setSource(source);
+        setDestination(dest);
+        setID(id);
+        this.creationDate = creationDate;
+        this.sendingDate = sendingDate;
     }
 
     /**
@@ -71,8 +99,8 @@ public class Message implements Serializable, Comparable<Message> {
 
     /**
      * message type accessor
-     * @return message type. Could be Message.DATA, Message.ACKNOWLEDGE, or
-     * Message.COMMAND
+     * @return message type. Could be Message.DATA, Message.ACKNOWLEDGE,
+     * Message.CUMULATIVE_ACK, or Message.COMMAND
      */
     public int getType() {
         return type;
@@ -84,12 +112,20 @@ public class Message implements Serializable, Comparable<Message> {
      * @throws InvalidArgumentException if type is invalid
      */
     public void setType(int type) {
-        if (type < COMMAND || type > DATA) {
+        if (!isValidType(type)) {
             throw new IllegalArgumentException("Invalid message type");
         }
         this.type = type;
     }
 
+    /**
+     * @param type type to check
+     * @return true if passed type is a valid message type
+     */
+    public static boolean isValidType(int type) {
+        return type >= COMMAND && type <= CUMULATIVE_ACK;
+    }
+
     /**
      * message content accessor
      * @return message content
@@ -138,17 +174,44 @@ public class Message implements Serializable, Comparable<Message> {
         this.dest = dest;
     }
 
+    /**
+     * sets the range acknowledged by a cumulative acknowledgement, see
+     * CumulativeAck
+     * @param from first acknowledged ID of the contiguous range ending at ID
+     * @param bitmap selective acknowledgement bitmap
+     */
+    void setAckRange(int from, long bitmap) {
+        ackFrom = from;
+        ackBitmap = bitmap;
+    }
+
+    /**
+     * @return first acknowledged ID of a cumulative acknowledgement
+     */
+    int getAckFrom() {
+        return ackFrom;
+    }
+
+    /**
+     * @return selective acknowledgement bitmap of a cumulative acknowledgement
+     */
+    long getAckBitmap() {
+        return ackBitmap;
+    }
+
     /**
      * renews message sending time to current
      */
     public void resurrect() {
-        this.sendingDate = GregorianCalendar.getInstance().getTimeInMillis();
+        this.sendingDate = Clock.millis();
     }
 
     /**
      * returns a string representation of this message
      * @return message as string in the following format:<BR>
-     * <B>ID:CREATION_TIME:SOURCE:DESTINATION:TYPE:CONTENT</B>
+     * <B>ID:CREATION_TIME:SOURCE:DESTINATION:TYPE:CONTENT</B><BR>
+     * where CONTENT of a cumulative acknowledgement is the range it
+     * acknowledges: <B>FROM_ID;BITMAP</B> with a hexadecimal BITMAP
      */
     @Override
     public String toString() {
@@ -158,7 +221,8 @@ public class Message implements Serializable, Comparable<Message> {
                 source + ":" +
                 dest + ":" +
                 encodeType(type) + ":" +
-                content;
+                (type == CUMULATIVE_ACK
+                ? ackFrom + ";" + Long.toHexString(ackBitmap) : content);
     }
 
     /**
@@ -177,6 +241,9 @@ public class Message implements Serializable, Comparable<Message> {
         if (type == ACKNOWLEDGE) {
             return "ACKNOWLEDGE";
         }
+        if (type == CUMULATIVE_ACK) {
+            return "CUMULATIVE_ACK";
+        }
         return "UNKNOWN";
     }
 
@@ -193,15 +260,18 @@ public class Message implements Serializable, Comparable<Message> {
             result = ACKNOWLEDGE;
         } else if (type.equals("DATA")) {
             result = DATA;
+        } else if (type.equals("CUMULATIVE_ACK")) {
+            result = CUMULATIVE_ACK;
         }
         return result;
     }
 
     /**
      * Message decodiong factory method that creates message from
-     * encoded String representation
+     * encoded String representation (see MessageCodec for the binary format)
      * @param message encoded String
      * @return message with decoded info
+     * @throws IllegalArgumentException if a field is malformed
      */
     public static Message decodeMessage(String message) {
         Message result = null;
@@ -213,6 +283,15 @@ public class Message implements Serializable, Comparable<Message> {
             result.setID(Integer.parseInt(parts[0]));
             result.creationDate = Long.parseLong(parts[1]);
             result.sendingDate = Long.parseLong(parts[2]);
+            if (type == CUMULATIVE_ACK) {
+                int separator = parts[6].indexOf(';');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Invalid acknowledgement range");
+                }
+                result.setAckRange(Integer.parseInt(parts[6].substring(0, separator)),
+                        Long.parseUnsignedLong(parts[6].substring(separator + 1), 16));
+                result.content = null;
+            }
             /*
             for(int i = 7; i < parts.length; i++){
                 result.content += ":" + parts[i];
@@ -0,0 +1,525 @@
+package clientserverdemo;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Wire codec that converts messages to and from their datagram representation.
+ * Binary encoding is the default, the old colon-separated text format is kept
+ * as a debug/compatibility mode and is selected by setting the system property
+ * <B>clientserverdemo.textCodec</B> to true. Decoding accepts both formats.<BR>
+ * Binary layout (all numbers big endian):<BR>
+ * <B>MAGIC VERSION TYPE ID CREATION_TIME SENDING_TIME SOURCE_LENGTH
+ * DESTINATION_LENGTH CONTENT_LENGTH SOURCE DESTINATION CONTENT</B><BR>
+ * where strings are UTF-8 encoded. Messages too long to fit in one datagram
+ * are sent as fragments, a fragment has FRAGMENT_VERSION as its version and
+ * carries a slice of the content, it has the same header and names followed by:<BR>
+ * <B>FRAGMENT_INDEX FRAGMENT_COUNT TOTAL_CONTENT_LENGTH CONTENT_OFFSET</B><BR>
+ * before the content slice, whose length is stored as CONTENT_LENGTH. A
+ * cumulative acknowledgement has no content, the range it acknowledges (see
+ * CumulativeAck) follows the names instead:<BR>
+ * <B>FROM_ID BITMAP</B><BR>
+ * Several binary messages may be packed in one datagram as a batch:<BR>
+ * <B>MAGIC BATCH_VERSION MESSAGE MESSAGE...</B>
+ * @author Yasser Jaffal
+ */
+public final class MessageCodec {
+
+    public static final byte MAGIC = (byte) 0xC5;
+    public static final byte VERSION = 1;
+    public static final byte FRAGMENT_VERSION = 2;
+    public static final byte BATCH_VERSION = 3;
+    public static final int HEADER_SIZE = 31;
+    public static final int FRAGMENT_HEADER_SIZE = 16;
+    public static final int ACK_HEADER_SIZE = 12;
+    public static final int BATCH_HEADER_SIZE = 2;
+    private static final int TYPE_OFFSET = 2;
+    private static final int ID_OFFSET = 3;
+    private static final int CREATION_OFFSET = 7;
+    private static final int SENDING_OFFSET = 15;
+    private static final int SOURCE_LENGTH_OFFSET = 23;
+    private static final int DESTINATION_LENGTH_OFFSET = 25;
+    private static final int CONTENT_LENGTH_OFFSET = 27;
+    public static final String TEXT_ENCODING = "Windows-1256";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static boolean textMode = Boolean.getBoolean("clientserverdemo.textCodec");
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @return true if messages are encoded using the text format
+     */
+    public static boolean isTextMode() {
+        return textMode;
+    }
+
+    /**
+     * switches between text and binary encoding
+     * @param text true to encode messages as text, false for binary
+     */
+    public static void setTextMode(boolean text) {
+        textMode = text;
+    }
+
+    /**
+     * encodes the passed message into the buffer starting at its current
+     * position, using the currently selected format
+     * @param msg message to encode
+     * @param dst buffer to write to
+     * @throws BufferOverflowException if the message does not fit in the buffer
+     */
+    public static void encode(Message msg, ByteBuffer dst) {
+        if (textMode) {
+            encodeText(msg, dst);
+        } else {
+            encodeBinary(msg, dst);
+        }
+    }
+
+    /**
+     * encodes the passed message in binary format
+     * @param msg message to encode
+     * @param dst buffer to write to
+     * @throws BufferOverflowException if the message does not fit in the buffer
+     */
+    public static void encodeBinary(Message msg, ByteBuffer dst) {
+        byte[] source = bytes(msg.getSource());
+        byte[] dest = bytes(msg.getDestination());
+        byte[] content = bytes(msg.getContent());
+        boolean ack = msg.getType() == Message.CUMULATIVE_ACK;
+        if (source.length > 0xFFFF || dest.length > 0xFFFF ||
+                dst.remaining() < HEADER_SIZE + source.length + dest.length +
+                (ack ? ACK_HEADER_SIZE : 0) + content.length) {
+            throw new BufferOverflowException();
+        }
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) msg.getType());
+        dst.putInt(msg.getID());
+        dst.putLong(msg.getCreationDate());
+        dst.putLong(msg.getSendingDate());
+        dst.putShort((short) source.length);
+        dst.putShort((short) dest.length);
+        dst.putInt(content.length);
+        dst.put(source);
+        dst.put(dest);
+        if (ack) {
+            dst.putInt(msg.getAckFrom());
+            dst.putLong(msg.getAckBitmap());
+        }
+        dst.put(content);
+    }
+
+    /**
+     * encodes the passed message in text format (see Message.toString())
+     * @param msg message to encode
+     * @param dst buffer to write to
+     * @throws BufferOverflowException if the message does not fit in the buffer
+     */
+    public static void encodeText(Message msg, ByteBuffer dst) {
+        try {
+            dst.put(msg.toString().getBytes(TEXT_ENCODING));
+        } catch (UnsupportedEncodingException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+
+    /**
+     * Message decoding factory method that reads a message from the buffer's
+     * remaining bytes, the format is detected automatically
+     * @param src buffer holding one encoded message
+     * @return decoded message, or null if buffer content is malformed
+     */
+    public static Message decode(ByteBuffer src) {
+        if (!src.hasRemaining()) {
+            return null;
+        }
+        if (src.get(src.position()) == MAGIC) {
+            return decodeBinary(src);
+        }
+        return decodeText(src);
+    }
+
+    /**
+     * decodes a binary encoded message
+     * @param src buffer holding one binary encoded message
+     * @return decoded message, or null if buffer content is malformed
+     */
+    public static Message decodeBinary(ByteBuffer src) {
+        return decodeBinary(src, true);
+    }
+
+    /**
+     * decodes a binary encoded message, optionally leaving its content out
+     * when it is not going to be used (e.g. acknowledgements)
+     * @param src buffer holding one binary encoded message
+     * @param withContent false to skip content decoding (content will be null)
+     * @return decoded message, or null if buffer content is malformed
+     */
+    public static Message decodeBinary(ByteBuffer src, boolean withContent) {
+        try {
+            if (src.get() != MAGIC || src.get() != VERSION) {
+                return null;
+            }
+            int type = src.get();
+            if (!Message.isValidType(type)) {
+                return null;
+            }
+            int id = src.getInt();
+            long creationDate = src.getLong();
+            long sendingDate = src.getLong();
+            int sourceLength = src.getShort() & 0xFFFF;
+            int destLength = src.getShort() & 0xFFFF;
+            int contentLength = src.getInt();
+            boolean ack = type == Message.CUMULATIVE_ACK;
+            if (contentLength < 0 || src.remaining() < (long) sourceLength +
+                    destLength + (ack ? ACK_HEADER_SIZE : 0) + contentLength) {
+                return null;
+            }
+            String source = string(src, sourceLength);
+            String dest = string(src, destLength);
+            int ackFrom = 0;
+            long ackBitmap = 0;
+            if (ack) {
+                ackFrom = src.getInt();
+                ackBitmap = src.getLong();
+            }
+            String content = null;
+            if (withContent) {
+                content = string(src, contentLength);
+            } else {
+                src.position(src.position() + contentLength);
+            }
+            Message result = new Message(id, creationDate, sendingDate,
+                    source, dest, content, type);
+            if (ack) {
+                result.setAckRange(ackFrom, ackBitmap);
+            }
+            return result;
+        } catch (BufferUnderflowException err) {
+            return null;
+        }
+    }
+
+    /**
+     * decodes a text encoded message (see Message.decodeMessage())
+     * @param src buffer holding one text encoded message
+     * @return decoded message, or null if buffer content is malformed
+     */
+    public static Message decodeText(ByteBuffer src) {
+        try {
+            String data;
+            if (src.hasArray()) {
+                data = new String(src.array(), src.arrayOffset() + src.position(),
+                        src.remaining(), TEXT_ENCODING);
+            } else {
+                byte[] buffer = new byte[src.remaining()];
+                src.duplicate().get(buffer);
+                data = new String(buffer, TEXT_ENCODING);
+            }
+            src.position(src.limit());
+            return Message.decodeMessage(data);
+        } catch (UnsupportedEncodingException err) {
+            throw new IllegalStateException(err);
+        } catch (IllegalArgumentException err) {
+            return null;
+        }
+    }
+
+    /**
+     * checks, without decoding, whether the buffer's remaining bytes hold a
+     * complete binary encoded message so that header fields could be read in
+     * place using the peek methods
+     * @param src buffer to check, position is not changed
+     * @return true if buffer holds a well formed binary message
+     */
+    public static boolean isBinary(ByteBuffer src) {
+        int p = src.position();
+        if (src.remaining() < HEADER_SIZE || src.get(p) != MAGIC ||
+                (src.get(p + 1) != VERSION && src.get(p + 1) != FRAGMENT_VERSION)) {
+            return false;
+        }
+        int type = src.get(p + TYPE_OFFSET);
+        int contentLength = src.getInt(p + CONTENT_LENGTH_OFFSET);
+        int extra = extraLength(src);
+        return Message.isValidType(type) &&
+                contentLength >= 0 &&
+                src.remaining() >= (long) HEADER_SIZE + sourceLength(src) +
+                destinationLength(src) + extra + contentLength;
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return total length in bytes of the message
+     */
+    public static int messageLength(ByteBuffer src) {
+        return contentOffset(src) + contentLength(src) - src.position();
+    }
+
+    /**
+     * starts a batch of binary messages, messages are then added by putting
+     * their encoded bytes one after the other
+     * @param dst buffer to write to
+     */
+    public static void startBatch(ByteBuffer dst) {
+        dst.put(MAGIC);
+        dst.put(BATCH_VERSION);
+    }
+
+    /**
+     * @param src buffer to check, position is not changed
+     * @return true if the buffer holds a batch of binary messages
+     */
+    public static boolean isBatch(ByteBuffer src) {
+        return src.remaining() >= BATCH_HEADER_SIZE &&
+                src.get(src.position()) == MAGIC &&
+                src.get(src.position() + 1) == BATCH_VERSION;
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return true if the buffer holds a fragment of a message
+     */
+    public static boolean isFragment(ByteBuffer src) {
+        return src.get(src.position() + 1) == FRAGMENT_VERSION;
+    }
+
+    /**
+     * @param src buffer positioned at a fragment
+     * @return index of the fragment
+     */
+    public static int peekFragmentIndex(ByteBuffer src) {
+        return src.getInt(fragmentOffset(src));
+    }
+
+    /**
+     * @param src buffer positioned at a fragment
+     * @return number of fragments of the whole message
+     */
+    public static int peekFragmentCount(ByteBuffer src) {
+        return src.getInt(fragmentOffset(src) + 4);
+    }
+
+    /**
+     * @param src buffer positioned at a fragment
+     * @return content length of the whole message
+     */
+    public static int peekTotalLength(ByteBuffer src) {
+        return src.getInt(fragmentOffset(src) + 8);
+    }
+
+    /**
+     * @param src buffer positioned at a fragment
+     * @return offset of the fragment's content slice in the whole content
+     */
+    public static int peekContentOffset(ByteBuffer src) {
+        return src.getInt(fragmentOffset(src) + 12);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message or fragment
+     * @return absolute index of the first content byte
+     */
+    public static int contentOffset(ByteBuffer src) {
+        return fragmentOffset(src) + extraLength(src);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message or fragment
+     * @return length in bytes of the content (or content slice)
+     */
+    public static int contentLength(ByteBuffer src) {
+        return src.getInt(src.position() + CONTENT_LENGTH_OFFSET);
+    }
+
+    /**
+     * encodes a fragment of a message
+     * @param msg message being fragmented
+     * @param source UTF-8 encoded source of the message
+     * @param dest UTF-8 encoded destination of the message
+     * @param content UTF-8 encoded content of the whole message
+     * @param index index of this fragment
+     * @param count number of fragments
+     * @param offset offset of this fragment's slice in the content
+     * @param length length of this fragment's slice
+     * @param dst buffer to write to
+     * @throws BufferOverflowException if the fragment does not fit in the buffer
+     */
+    public static void encodeFragment(Message msg, byte[] source, byte[] dest,
+            byte[] content, int index, int count, int offset, int length,
+            ByteBuffer dst) {
+        if (dst.remaining() < HEADER_SIZE + FRAGMENT_HEADER_SIZE +
+                source.length + dest.length + length) {
+            throw new BufferOverflowException();
+        }
+        dst.put(MAGIC);
+        dst.put(FRAGMENT_VERSION);
+        dst.put((byte) msg.getType());
+        dst.putInt(msg.getID());
+        dst.putLong(msg.getCreationDate());
+        dst.putLong(msg.getSendingDate());
+        dst.putShort((short) source.length);
+        dst.putShort((short) dest.length);
+        dst.putInt(length);
+        dst.put(source);
+        dst.put(dest);
+        dst.putInt(index);
+        dst.putInt(count);
+        dst.putInt(content.length);
+        dst.putInt(offset);
+        dst.put(content, offset, length);
+    }
+
+    /**
+     * utility method to find the length of the fields between the names and
+     * the content: the fragment header or the acknowledged range
+     */
+    private static int extraLength(ByteBuffer src) {
+        if (isFragment(src)) {
+            return FRAGMENT_HEADER_SIZE;
+        }
+        return peekType(src) == Message.CUMULATIVE_ACK ? ACK_HEADER_SIZE : 0;
+    }
+
+    /**
+     * utility method to find the first byte after the names
+     */
+    private static int fragmentOffset(ByteBuffer src) {
+        return destinationOffset(src) + destinationLength(src);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return message type read in place
+     */
+    public static int peekType(ByteBuffer src) {
+        return src.get(src.position() + TYPE_OFFSET);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return message ID read in place
+     */
+    public static int peekID(ByteBuffer src) {
+        return src.getInt(src.position() + ID_OFFSET);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return message creation date read in place
+     */
+    public static long peekCreationDate(ByteBuffer src) {
+        return src.getLong(src.position() + CREATION_OFFSET);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return message sending date read in place
+     */
+    public static long peekSendingDate(ByteBuffer src) {
+        return src.getLong(src.position() + SENDING_OFFSET);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return absolute index of the first byte of the source name
+     */
+    public static int sourceOffset(ByteBuffer src) {
+        return src.position() + HEADER_SIZE;
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return length in bytes of the source name
+     */
+    public static int sourceLength(ByteBuffer src) {
+        return src.getShort(src.position() + SOURCE_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return absolute index of the first byte of the destination name
+     */
+    public static int destinationOffset(ByteBuffer src) {
+        return sourceOffset(src) + sourceLength(src);
+    }
+
+    /**
+     * @param src buffer positioned at a binary message
+     * @return length in bytes of the destination name
+     */
+    public static int destinationLength(ByteBuffer src) {
+        return src.getShort(src.position() + DESTINATION_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * compares the destination of a binary message in place
+     * @param src buffer positioned at a binary message
+     * @param name UTF-8 encoded name to compare with
+     * @return true if message destination equals the passed name
+     */
+    public static boolean destinationEquals(ByteBuffer src, byte[] name) {
+        return regionEquals(src, destinationOffset(src), destinationLength(src), name);
+    }
+
+    /**
+     * compares the source of a binary message in place
+     * @param src buffer positioned at a binary message
+     * @param name UTF-8 encoded name to compare with
+     * @return true if message source equals the passed name
+     */
+    public static boolean sourceEquals(ByteBuffer src, byte[] name) {
+        return regionEquals(src, sourceOffset(src), sourceLength(src), name);
+    }
+
+    /**
+     * @param s string to encode
+     * @return UTF-8 bytes of the passed string, as used by the binary format
+     */
+    public static byte[] utf8(String s) {
+        return bytes(s);
+    }
+
+    /**
+     * utility method to compare a buffer region with a byte array
+     */
+    private static boolean regionEquals(ByteBuffer src, int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (src.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * utility method to encode a possibly null string as UTF-8
+     */
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(UTF8);
+    }
+
+    /**
+     * utility method to read a UTF-8 string of the given length
+     */
+    private static String string(ByteBuffer src, int length) {
+        String result;
+        if (src.hasArray()) {
+            result = new String(src.array(), src.arrayOffset() + src.position(),
+                    length, UTF8);
+            src.position(src.position() + length);
+        } else {
+            byte[] buffer = new byte[length];
+            src.get(buffer);
+            result = new String(buffer, UTF8);
+        }
+        return result;
+    }
+}
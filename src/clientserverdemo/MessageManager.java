@@ -1,24 +1,118 @@
 package clientserverdemo;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * This class manages sent messages, acknowledgements, and known peers
+ * This class manages sent messages, acknowledgements, and known peers.
+ * It is safe to use from multiple threads: peers are kept in a concurrent map
+ * and each peer's state is guarded by its own lock, while sent messages are
+ * spread over several independently locked stores by message ID, so there is
+ * no global lock. Locks are always taken in peer, then store order. Changes
+ * are recorded by a Journal when one is set, and each peer and store is
+ * serialized under its own lock so a snapshot can be taken while in use.
+ * When the system property <B>clientserverdemo.mappedStore</B> is set, sent
+ * messages are kept in a memory mapped file instead of the heap
  * @author Yasser Jaffal
  */
 public class MessageManager implements Serializable {
 
-    private Hashtable<String, PeerMessages> peers;
-    private Set<Message> sentMessages;
-    int nextMessageID = 0;
+    private static final long serialVersionUID = 1L;
+    private static final int STRIPES = 16;
+    private static final LongAdder EVICTED = Metrics.counter("ackWindow.evicted");
+    private static final long WARNING_INTERVAL = 1000;
+    public static final boolean MAPPED_STORE =
+            Boolean.getBoolean("clientserverdemo.mappedStore");
+    private ConcurrentHashMap<String, PeerMessages> peers;
+    private MessageStore[] sentMessages;
+    private Releaser releaser;
+    private AtomicInteger nextMessageID = new AtomicInteger();
+    private transient volatile Journal journal;
+    private transient MappedPayloads payloads;
 
     /**
      * Constructor
      */
     public MessageManager() {
-        peers = new Hashtable<String, PeerMessages>();
-        sentMessages = new HashSet<Message>();
+        peers = new ConcurrentHashMap<String, PeerMessages>();
+        sentMessages = new MessageStore[STRIPES];
+        payloads = openPayloads();
+        for (int i = 0; i < STRIPES; i++) {
+            sentMessages[i] = new MessageStore(payloads);
+        }
+        releaser = new Releaser();
+    }
+
+    /**
+     * utility method to open the file of sent messages in mapped mode
+     */
+    private static MappedPayloads openPayloads() {
+        if (!MAPPED_STORE) {
+            return null;
+        }
+        try {
+            return new MappedPayloads("csdemo");
+        } catch (IOException err) {
+            System.err.println("unable to map sent messages: " + err.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * restores a serialized manager, moving its messages to a mapped file
+     * in mapped mode
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        payloads = openPayloads();
+        if (payloads != null) {
+            for (MessageStore store : sentMessages) {
+                store.moveTo(payloads);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of the memory mapped file in use by sent messages, 0 if
+     * messages are kept on the heap
+     */
+    public long getMappedSize() {
+        return payloads == null ? 0 : payloads.getUsedSize();
+    }
+
+    /**
+     * sets the journal that records changes of this manager
+     * @param journal journal to use, null to stop journaling
+     */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * makes sure the passed ID is never returned by getNextMessageID()
+     * @param id ID already used by a restored message
+     */
+    void reserveMessageID(int id) {
+        int next;
+        while ((next = nextMessageID.get()) <= id) {
+            if (nextMessageID.compareAndSet(next, id + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a unique integer to be used as message ID
+     */
+    public int getNextMessageID() {
+        return nextMessageID.getAndIncrement();
     }
 
     /**
@@ -29,22 +123,113 @@ public class MessageManager implements Serializable {
         if (!peers.containsKey(name)) {
             PeerMessages pm = new PeerMessages();
             pm.tries = 0;
-            pm.missed = new TreeSet<Integer>();
-            peers.put(name, pm);
+            pm.missed = new AckWindow();
+            // journaled before the peer is visible so its record comes before
+            // any message it misses, replaying a peer twice is harmless
+            Journal j = journal;
+            if (j != null) {
+                j.peerAdded(name);
+            }
+            peers.putIfAbsent(name, pm);
         }
     }
 
     /**
      * adds message to the collection of sent messages and marks it as
-     * missed message to all known peers
+     * missed message to all known peers. Message is kept only until all
+     * these peers acknowledge it
      * @param msg message to add
      */
     public void addMessage(Message msg) {
-        if (sentMessages.add(msg)) {
-            for (PeerMessages pms : peers.values()) {
-                pms.missed.add(msg.getID());
+        int id = msg.getID();
+        MessageStore store = stripe(id);
+        ArrayList<Map.Entry<String, PeerMessages>> targets =
+                new ArrayList<Map.Entry<String, PeerMessages>>(peers.entrySet());
+        synchronized (store) {
+            if (store.contains(id)) {
+                return;
+            }
+            store.put(msg, targets.size());
+            // journaled before any peer's window holds the message, so an
+            // acknowledgement of it is always journaled after it
+            Journal j = journal;
+            if (j != null) {
+                j.messageAdded(msg);
+            }
+        }
+        for (Map.Entry<String, PeerMessages> target : targets) {
+            if (!addMissed(target.getKey(), target.getValue(), id)) {
+                releaser.released(id);
+            }
+        }
+    }
+
+    /**
+     * adds a message replayed from a journal. A snapshot taken while the
+     * manager was in use could hold the message in its store but not in the
+     * windows of all peers, or could count acknowledgements that are
+     * replayed again. So the message is put back in the windows of all known
+     * peers and the number of peers it waits for is counted again from them
+     * @param msg message to restore
+     */
+    void restoreMessage(Message msg) {
+        int id = msg.getID();
+        MessageStore store = stripe(id);
+        synchronized (store) {
+            if (!store.contains(id)) {
+                store = null;
+            }
+        }
+        if (store == null) {
+            addMessage(msg);
+            return;
+        }
+        int waiting = 0;
+        for (Map.Entry<String, PeerMessages> target : peers.entrySet()) {
+            PeerMessages pm = target.getValue();
+            boolean missed;
+            synchronized (pm) {
+                missed = pm.missed.contains(id);
+            }
+            if (missed || addMissed(target.getKey(), pm, id)) {
+                waiting++;
+            }
+        }
+        synchronized (store) {
+            store.setPending(id, waiting);
+        }
+    }
+
+    /**
+     * utility method to mark a message as missed by a peer. When the peer's
+     * window is full its oldest missed messages are dropped without being
+     * acknowledged, so they are counted and logged, the peer will never get
+     * them. A full window drops a message for every message added, so a
+     * peer's drops are logged at most once every WARNING_INTERVAL
+     * milliseconds
+     * @return true if the message has been marked
+     */
+    private boolean addMissed(String peerName, PeerMessages pm, int id) {
+        boolean added;
+        long dropped, unreported = 0;
+        synchronized (pm) {
+            long before = pm.missed.getEvicted();
+            added = pm.missed.add(id, releaser);
+            dropped = pm.missed.getEvicted() - before;
+            if (dropped > 0 && Clock.millis() - pm.warned >= WARNING_INTERVAL) {
+                unreported = pm.missed.getEvicted() - pm.reported;
+                pm.reported = pm.missed.getEvicted();
+                pm.warned = Clock.millis();
             }
         }
+        if (dropped > 0) {
+            EVICTED.add(dropped);
+        }
+        if (unreported > 0) {
+            Log.warning(null, "gave up " + unreported + " unacknowledged messages to " +
+                    peerName + ", more than " + AckWindow.MAX_SIZE + " are missed");
+        }
+        return added;
     }
 
     /**
@@ -54,32 +239,123 @@ public class MessageManager implements Serializable {
      * @param messageID ID of the acknowledged message
      */
     public void acknowledge(String peerName, int messageID) {
-        if (!peers.containsKey(peerName)) {
-            addPeer(peerName);
+        addPeer(peerName);
+        PeerMessages pm = peers.get(peerName);
+        synchronized (pm) {
+            if (pm.missed.acknowledge(messageID)) {
+                releaser.released(messageID);
+            }
+            Journal j = journal;
+            if (j != null) {
+                j.acknowledged(peerName, messageID);
+            }
+        }
+    }
+
+    /**
+     * acknowledges all messages in the passed range of IDs from the passed
+     * peer, a cumulative acknowledgement covers all IDs up to some ID
+     * @param peerName peer name from which acknowledgement came
+     * @param fromID ID of the first acknowledged message
+     * @param toID ID of the last acknowledged message (inclusive)
+     */
+    public void acknowledgeRange(String peerName, int fromID, int toID) {
+        addPeer(peerName);
+        PeerMessages pm = peers.get(peerName);
+        synchronized (pm) {
+            pm.missed.acknowledgeRange(fromID, toID, releaser);
+            Journal j = journal;
+            if (j != null) {
+                j.acknowledgedRange(peerName, fromID, toID);
+            }
         }
+    }
+
+    /**
+     * acknowledges the messages marked in the passed selective
+     * acknowledgement bitmap from the passed peer
+     * @param peerName peer name from which acknowledgement came
+     * @param firstID ID acknowledged by bit 0 of the bitmap
+     * @param bitmap bit i acknowledges message firstID + i
+     */
+    public void acknowledgeBitmap(String peerName, int firstID, long bitmap) {
+        addPeer(peerName);
         PeerMessages pm = peers.get(peerName);
-        Set<Integer> msgs = pm.missed;
-        if (msgs.contains(messageID)) {
-            msgs.remove(new Integer(messageID));
+        synchronized (pm) {
+            long bits = bitmap;
+            while (bits != 0) {
+                int id = firstID + Long.numberOfTrailingZeros(bits);
+                if (pm.missed.acknowledge(id)) {
+                    releaser.released(id);
+                }
+                bits &= bits - 1;
+            }
+            Journal j = journal;
+            if (j != null && bitmap != 0) {
+                j.acknowledgedBitmap(peerName, firstID, bitmap);
+            }
         }
     }
 
     /**
-     * returns array of missed messages for the passed peer name
+     * returns array of missed messages for the passed peer name, ordered by
+     * message ID (which is also the order of creation). Returned messages are
+     * copies addressed to the peer, stored messages are never changed since
+     * they could still be in use by their first send
      * @param peerName peer name to get missed messages for
      * @return array of missed messages
      */
     public Message[] getMissedMessages(String peerName) {
-        Set<Integer> ids = peers.get(peerName).missed;
-        TreeSet<Message> result = new TreeSet<Message>();
-        
-        for (Message msg : sentMessages) {
-            if (ids.contains(msg.getID())) {
-                msg.setDestination(peerName);
-                result.add(msg);
+        PeerMessages pm = peers.get(peerName);
+        int[] ids;
+        synchronized (pm) {
+            ids = pm.missed.toArray();
+        }
+        Message[] result = new Message[ids.length];
+        int count = 0;
+
+        for (int id : ids) {
+            MessageStore store = stripe(id);
+            Message msg;
+            synchronized (store) {
+                msg = store.get(id);
+            }
+            if (msg != null) {
+                result[count++] = new Message(msg.getID(), msg.getCreationDate(),
+                        msg.getSendingDate(), msg.getSource(), peerName,
+                        msg.getContent(), msg.getType());
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return number of sent messages that are still waiting for at least
+     * one acknowledgement
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (MessageStore store : sentMessages) {
+            synchronized (store) {
+                count += store.size();
             }
         }
-        return result.toArray(new Message[0]);
+        return count;
+    }
+
+    /**
+     * @param peerName name of the peer
+     * @return number of sent messages the passed peer has not acknowledged,
+     * 0 for unknown peers
+     */
+    public int getPendingCount(String peerName) {
+        PeerMessages pm = peers.get(peerName);
+        if (pm == null) {
+            return 0;
+        }
+        synchronized (pm) {
+            return pm.missed.size();
+        }
     }
 
     /**
@@ -96,7 +372,10 @@ public class MessageManager implements Serializable {
      * @param peerName peer name to reset tries for
      */
     public void resetTries(String peerName) {
-        peers.get(peerName).tries = 0;
+        PeerMessages pm = peers.get(peerName);
+        synchronized (pm) {
+            pm.tries = 0;
+        }
     }
 
     /**
@@ -105,7 +384,10 @@ public class MessageManager implements Serializable {
      * @param peerName peer name to increase tries for
      */
     public void increaseTries(String peerName) {
-        peers.get(peerName).tries++;
+        PeerMessages pm = peers.get(peerName);
+        synchronized (pm) {
+            pm.tries++;
+        }
     }
 
     /**
@@ -125,7 +407,33 @@ public class MessageManager implements Serializable {
      * @return number of failure sending tries
      */
     public int getTries(String peerName) {
-        return peers.get(peerName).tries;
+        PeerMessages pm = peers.get(peerName);
+        synchronized (pm) {
+            return pm.tries;
+        }
+    }
+
+    /**
+     * utility method to find the store holding the passed message ID
+     */
+    private MessageStore stripe(int id) {
+        return sentMessages[id & (STRIPES - 1)];
+    }
+
+    /**
+     * Private class that releases messages from their stores as peers'
+     * windows acknowledge or drop them
+     */
+    private class Releaser implements AckWindow.Listener, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public void released(int id) {
+            MessageStore store = stripe(id);
+            synchronized (store) {
+                store.release(id);
+            }
+        }
     }
 
     /**
@@ -134,7 +442,16 @@ public class MessageManager implements Serializable {
      */
     private class PeerMessages implements Serializable {
 
+        private static final long serialVersionUID = 1L;
+
         public int tries;
-        public TreeSet<Integer> missed;
+        public AckWindow missed;
+        private long reported;
+        private transient long warned;
+
+        private synchronized void writeObject(ObjectOutputStream out)
+                throws IOException {
+            out.defaultWriteObject();
+        }
     }
 }
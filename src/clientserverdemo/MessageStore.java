@@ -0,0 +1,287 @@
+package clientserverdemo;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Store of sent messages indexed by their IDs using primitive int keys (open
+ * addressing with linear probing). Each stored message carries the number of
+ * peers that still have not acknowledged it, and is evicted once that number
+ * drops to zero. Messages are kept on the heap, or encoded in MappedPayloads
+ * when one is passed to the constructor, in which case only IDs and handles
+ * stay on the heap and get() returns a new copy of the message. Not thread
+ * safe
+ * @author Yasser Jaffal
+ */
+class MessageStore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_CAPACITY = 16;
+    private int[] keys;
+    private Message[] values;
+    private long[] handles;
+    private int[] pending;
+    private int size;
+    private transient MappedPayloads payloads;
+
+    /**
+     * Constructor of a store that keeps messages on the heap
+     */
+    public MessageStore() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     * @param payloads file to keep messages in, null to keep them on the heap
+     */
+    public MessageStore(MappedPayloads payloads) {
+        this.payloads = payloads;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * stores a message
+     * @param msg message to store, indexed by its ID
+     * @param pendingPeers number of peers that should acknowledge the message
+     * before it is evicted, message is not stored if this number is zero
+     */
+    public void put(Message msg, int pendingPeers) {
+        if (pendingPeers <= 0) {
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int slot = slot(msg.getID());
+        while (pending[slot] != 0 && keys[slot] != msg.getID()) {
+            slot = next(slot);
+        }
+        if (pending[slot] == 0) {
+            size++;
+        } else {
+            discard(slot);
+        }
+        keys[slot] = msg.getID();
+        values[slot] = msg;
+        pending[slot] = pendingPeers;
+        if (payloads != null) {
+            try {
+                handles[slot] = payloads.write(msg);
+            } catch (IOException err) {
+                handles[slot] = -1;
+            }
+            if (handles[slot] >= 0) {
+                values[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * @param id ID of the message to find
+     * @return stored message with the passed ID, null if not found
+     */
+    public Message get(int id) {
+        int slot = indexOf(id);
+        if (slot < 0) {
+            return null;
+        }
+        return values[slot] != null ? values[slot] : payloads.read(handles[slot]);
+    }
+
+    /**
+     * @param id ID of message to check
+     * @return true if a message with the passed ID is stored
+     */
+    public boolean contains(int id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     * records that one more peer has acknowledged the message, evicting it
+     * once all peers did
+     * @param id ID of acknowledged message
+     * @return true if message has been evicted
+     */
+    public boolean release(int id) {
+        int slot = indexOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        if (--pending[slot] > 0) {
+            return false;
+        }
+        discard(slot);
+        delete(slot);
+        return true;
+    }
+
+    /**
+     * sets the number of peers that still have not acknowledged a stored
+     * message, evicting it if that number is zero
+     * @param id ID of the stored message
+     * @param pendingPeers number of peers that should acknowledge the message
+     */
+    public void setPending(int id, int pendingPeers) {
+        int slot = indexOf(id);
+        if (slot < 0) {
+            return;
+        }
+        if (pendingPeers > 0) {
+            pending[slot] = pendingPeers;
+        } else {
+            discard(slot);
+            delete(slot);
+        }
+    }
+
+    /**
+     * @return number of stored messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * utility method to find the slot holding the passed ID
+     */
+    private int indexOf(int id) {
+        int slot = slot(id);
+        while (pending[slot] != 0) {
+            if (keys[slot] == id) {
+                return slot;
+            }
+            slot = next(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * utility method to free the mapped copy of the message at the passed slot
+     */
+    private void discard(int slot) {
+        if (values[slot] == null) {
+            payloads.free(handles[slot]);
+        }
+        values[slot] = null;
+    }
+
+    /**
+     * utility method to remove the entry at the passed slot, entries
+     * following it are shifted back so probing sequences stay unbroken
+     */
+    private void delete(int slot) {
+        pending[slot] = 0;
+        size--;
+        int hole = slot;
+        int i = next(slot);
+        while (pending[i] != 0) {
+            int home = slot(keys[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i)
+                    : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                handles[hole] = handles[i];
+                pending[hole] = pending[i];
+                values[i] = null;
+                pending[i] = 0;
+                hole = i;
+            }
+            i = next(i);
+        }
+        if (size * 8 < keys.length && keys.length > MIN_CAPACITY) {
+            rehash(keys.length / 2);
+        }
+    }
+
+    /**
+     * utility method to resize the tables
+     */
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Message[] oldValues = values;
+        long[] oldHandles = handles;
+        int[] oldPending = pending;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPending[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                while (pending[slot] != 0) {
+                    slot = next(slot);
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                handles[slot] = oldHandles[i];
+                pending[slot] = oldPending[i];
+            }
+        }
+    }
+
+    /**
+     * moves all messages into the passed file, used to switch a restored
+     * store to mapped mode
+     * @param payloads file to keep messages in
+     */
+    public void moveTo(MappedPayloads payloads) {
+        int[] oldKeys = keys;
+        Message[] oldValues = values;
+        int[] oldPending = pending;
+        this.payloads = payloads;
+        allocate(keys.length);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPending[i] != 0) {
+                put(oldValues[i], oldPending[i]);
+            }
+        }
+    }
+
+    /**
+     * serializes the store holding its own lock, which is the lock
+     * MessageManager guards it with. Messages are written as objects
+     * whether they are mapped or not
+     */
+    private synchronized void writeObject(ObjectOutputStream out)
+            throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (pending[i] != 0) {
+                out.writeInt(pending[i]);
+                out.writeObject(values[i] != null ? values[i]
+                        : payloads.read(handles[i]));
+            }
+        }
+    }
+
+    /**
+     * restores a serialized store, messages are kept on the heap
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        allocate(MIN_CAPACITY);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int peers = in.readInt();
+            put((Message) in.readObject(), peers);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Message[capacity];
+        handles = new long[capacity];
+        pending = new int[capacity];
+    }
+
+    private int slot(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private int next(int slot) {
+        return (slot + 1) & (keys.length - 1);
+    }
+}
@@ -0,0 +1,192 @@
+package clientserverdemo;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Counters and latency histograms of the messaging pipeline of this process.
+ * Counters are striped (LongAdder) so counting on hot paths does not contend,
+ * values that are cheaper to compute when asked for (such as the backlog of
+ * every peer) are reported by Sources. All values could be read as a text
+ * snapshot, or through JMX as attributes of the MBean
+ * <B>clientserverdemo:type=Metrics</B>, which also has a <B>snapshot</B>
+ * operation. Histograms are reported as NAME.count, NAME.p50, NAME.p99,
+ * NAME.p999 and NAME.max
+ * @author Yasser Jaffal
+ */
+public final class Metrics implements DynamicMBean {
+
+    private static final ConcurrentHashMap<String, LongAdder> counters =
+            new ConcurrentHashMap<String, LongAdder>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final CopyOnWriteArrayList<Source> sources =
+            new CopyOnWriteArrayList<Source>();
+
+    /**
+     * Reports values that are computed when metrics are read
+     */
+    public interface Source {
+
+        /**
+         * called whenever metrics are read
+         * @param values map to put the reported values in
+         */
+        void report(Map<String, Long> values);
+    }
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Metrics(), new ObjectName("clientserverdemo:type=Metrics"));
+        } catch (Exception err) {
+            System.err.println("unable to register metrics: " + err.getMessage());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name name of the counter
+     * @return the counter with the passed name, created if it does not exist,
+     * callers should keep it instead of looking it up for every count
+     */
+    public static LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = new LongAdder();
+            LongAdder existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @param name name of the histogram
+     * @return the histogram with the passed name, created if it does not exist
+     */
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @param source source to ask for values whenever metrics are read
+     */
+    public static void addSource(Source source) {
+        sources.add(source);
+    }
+
+    /**
+     * @param source source to remove
+     */
+    public static void removeSource(Source source) {
+        sources.remove(source);
+    }
+
+    /**
+     * @return current values of all metrics sorted by name
+     */
+    public static SortedMap<String, Long> values() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram h = entry.getValue();
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".p50", h.getPercentile(50));
+            values.put(name + ".p99", h.getPercentile(99));
+            values.put(name + ".p999", h.getPercentile(99.9));
+            values.put(name + ".max", h.getMax());
+        }
+        for (Source source : sources) {
+            source.report(values);
+        }
+        return values;
+    }
+
+    /**
+     * @return current values of all metrics as text, one
+     * <B>NAME VALUE</B> line each
+     */
+    public static String snapshot() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : values().entrySet()) {
+            text.append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        Long value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() +
+                " is read only");
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> values = values();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            Long value = values.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        if (actionName.equals("snapshot")) {
+            return snapshot();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes =
+                new ArrayList<MBeanAttributeInfo>();
+        for (String name : values().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name,
+                    true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(),
+                "messaging pipeline metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null,
+                new MBeanOperationInfo[]{new MBeanOperationInfo("snapshot",
+                    "all metrics as text", null, "java.lang.String",
+                    MBeanOperationInfo.INFO)},
+                null);
+    }
+}
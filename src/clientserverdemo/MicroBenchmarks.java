@@ -0,0 +1,838 @@
+package clientserverdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Micro benchmarks of the hot paths: message encoding and decoding,
+ * duplicate filtering, acknowledgement tracking, selection of missed
+ * messages for retransmission, history insertion, fragmentation of large
+ * messages, sending over loopback UDP with and without batching and the
+ * cost of a single send by SendingClient compared with building a new
+ * packet and resolving its address for every message, and journaling:
+ * appends (with their write amplification) and recovery. Every
+ * benchmark is run for WARMUPS untimed and ITERATIONS timed iterations of
+ * <B>clientserverdemo.benchmarkTime</B> milliseconds (default 1000) each,
+ * and is reported as operations per second (mean and standard deviation of
+ * the iterations), bytes allocated per operation and, for benchmarks that
+ * move payloads, megabytes of payload per second. Scales are read from
+ * <B>clientserverdemo.benchmarkPeers</B> (default 1,100,10000),
+ * <B>clientserverdemo.benchmarkMessages</B> (default 1000,100000,1000000,
+ * 10000000 needs about 2 GB of heap; unless
+ * <B>clientserverdemo.ackWindow</B> is set, the window is made large
+ * enough for the largest backlog),
+ * <B>clientserverdemo.benchmarkPayloads</B> (default 16,256,1024 bytes, also
+ * used by the UDP and journal append benchmarks),
+ * <B>clientserverdemo.benchmarkFragmented</B> (default
+ * 1024,16384,262144,1048576 bytes) and <B>clientserverdemo.benchmarkJournal</B>
+ * (default 10000,100000 journaled messages to recover). Journals are
+ * written to the temporary directory.
+ * Arguments select benchmarks whose name contains any of them, for example:<BR>
+ * <B>java clientserverdemo.MicroBenchmarks codec dedup</B>
+ * @author Yasser Jaffal
+ */
+public class MicroBenchmarks {
+
+    public static final int WARMUPS = 3;
+    public static final int ITERATIONS = 5;
+    private static final long ITERATION_TIME =
+            Long.getLong("clientserverdemo.benchmarkTime", 1000);
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    static volatile long sink;
+
+    /**
+     * A single benchmark, run() is called repeatedly with the number of
+     * operations to perform
+     */
+    abstract static class Benchmark {
+
+        final String name;
+        int bytes;
+
+        Benchmark(String name) {
+            this(name, 0);
+        }
+
+        /**
+         * @param name name of the benchmark
+         * @param bytes payload bytes moved by each operation
+         */
+        Benchmark(String name, int bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        /**
+         * prepares the benchmark, called once before it is measured
+         * @throws IOException if resources could not be opened
+         */
+        void setUp() throws IOException {
+        }
+
+        /**
+         * releases resources opened by setUp()
+         */
+        void tearDown() {
+        }
+
+        /**
+         * @return a line reporting more results once the benchmark has been
+         * measured, null if there is nothing to add
+         */
+        String note() {
+            return null;
+        }
+
+        /**
+         * performs operations
+         * @param ops number of operations to perform
+         * @return any value computed by the operations, so they are not
+         * optimized away
+         */
+        abstract long run(int ops);
+    }
+
+    /**
+     * main method
+     * @param args parts of names of benchmarks to run, empty to run all
+     */
+    public static void main(String[] args) {
+        int[] peers = scales("clientserverdemo.benchmarkPeers", "1,100,10000");
+        int[] messages = scales("clientserverdemo.benchmarkMessages",
+                "1000,100000,1000000");
+        int largest = 0;
+        for (int count : messages) {
+            largest = Math.max(largest, count);
+        }
+        // must be set before AckWindow is loaded, which reads it once
+        if (System.getProperty("clientserverdemo.ackWindow") == null &&
+                largest > (1 << 16)) {
+            System.setProperty("clientserverdemo.ackWindow", String.valueOf(largest));
+        }
+        int[] payloads = scales("clientserverdemo.benchmarkPayloads", "16,256,1024");
+        int[] fragmented = scales("clientserverdemo.benchmarkFragmented",
+                "1024,16384,262144,1048576");
+        int[] journaled = scales("clientserverdemo.benchmarkJournal", "10000,100000");
+        ArrayList<Benchmark> all = new ArrayList<Benchmark>();
+        for (int size : payloads) {
+            all.add(encodeBinary(size));
+            all.add(decodeBinary(size));
+            all.add(decodeText(size));
+        }
+        for (int count : peers) {
+            all.add(dedup(count));
+            all.add(acknowledge(count));
+        }
+        for (int count : messages) {
+            all.add(missedMessages(count));
+        }
+        all.add(history(false));
+        all.add(history(true));
+        for (int size : fragmented) {
+            all.add(fragmentation(size));
+        }
+        for (int size : payloads) {
+            all.add(loopback(size, false));
+            all.add(loopback(size, true));
+            all.add(sendNewPacket(size));
+            all.add(sendClient(size));
+            all.add(journalAppend(size));
+        }
+        for (int count : journaled) {
+            all.add(journalRecover(count));
+        }
+
+        System.out.printf("%-36s %14s %12s %12s %10s%n", "benchmark", "ops/s",
+                "error", "B/op", "MB/s");
+        for (Benchmark b : all) {
+            if (selected(b.name, args)) {
+                try {
+                    b.setUp();
+                    measure(b);
+                    String note = b.note();
+                    if (note != null) {
+                        System.out.println("    " + note);
+                    }
+                } catch (IOException err) {
+                    System.err.println(b.name + ": " + err.getMessage());
+                } finally {
+                    b.tearDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * utility method to run and report a benchmark
+     */
+    private static void measure(Benchmark b) {
+        int ops = 1;
+        long start = System.nanoTime();
+        // batch size that takes about 10 ms, so timing costs nothing
+        while (System.nanoTime() - start < 10000000L && ops < (1 << 30)) {
+            long t = System.nanoTime();
+            sink += b.run(ops);
+            if (System.nanoTime() - t > 10000000L) {
+                break;
+            }
+            ops <<= 1;
+        }
+        double[] rates = new double[ITERATIONS];
+        long allocated = 0, performed = 0;
+        for (int i = 0; i < WARMUPS + ITERATIONS; i++) {
+            long bytes = allocatedBytes();
+            long done = 0;
+            long begin = System.nanoTime();
+            long end = begin + ITERATION_TIME * 1000000L;
+            long now;
+            do {
+                sink += b.run(ops);
+                done += ops;
+                now = System.nanoTime();
+            } while (now < end);
+            if (i >= WARMUPS) {
+                rates[i - WARMUPS] = done * 1e9 / (now - begin);
+                if (bytes < 0 || allocated < 0) {
+                    allocated = -1;
+                } else {
+                    allocated += allocatedBytes() - bytes;
+                }
+                performed += done;
+            }
+        }
+        double mean = 0, variance = 0;
+        for (double r : rates) {
+            mean += r / rates.length;
+        }
+        for (double r : rates) {
+            variance += (r - mean) * (r - mean) / Math.max(1, rates.length - 1);
+        }
+        System.out.printf("%-36s %14s %12s %12s %10s%n", b.name, rate(mean),
+                rate(Math.sqrt(variance)), allocated < 0 ? "n/a"
+                : String.format("%.1f", (double) allocated / performed),
+                b.bytes == 0 ? "" : String.format("%.1f", mean * b.bytes / 1e6));
+    }
+
+    /**
+     * @return the passed rate formatted with decimals only if it is small,
+     * so slow benchmarks on large scales are not reported as 0
+     */
+    private static String rate(double value) {
+        return String.format(value < 100 ? "%.2f" : "%.0f", value);
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, -1 if the JVM
+     * does not count them
+     */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() &&
+                    counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static Message message(int id, int payload) {
+        char[] content = new char[payload];
+        Arrays.fill(content, 'x');
+        Message msg = new Message("SOURCE", Message.ALL,
+                new String(content), Message.DATA);
+        msg.setID(id);
+        return msg;
+    }
+
+    private static Benchmark encodeBinary(final int payload) {
+        return new Benchmark("codec.encodeBinary/" + payload + "B") {
+
+            final Message msg = message(1, payload);
+            final ByteBuffer dst = ByteBuffer.allocate(payload * 3 + 256);
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    dst.clear();
+                    MessageCodec.encodeBinary(msg, dst);
+                    result += dst.position();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark decodeBinary(final int payload) {
+        return new Benchmark("codec.decodeBinary/" + payload + "B") {
+
+            final ByteBuffer src = ByteBuffer.allocate(payload * 3 + 256);
+
+            {
+                MessageCodec.encodeBinary(message(1, payload), src);
+                src.flip();
+            }
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    src.position(0);
+                    result += MessageCodec.decodeBinary(src).getID();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark decodeText(final int payload) {
+        return new Benchmark("codec.decodeMessage/" + payload + "B") {
+
+            final String text = message(1, payload).toString();
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += Message.decodeMessage(text).getID();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark dedup(final int sources) {
+        return new Benchmark("dedup.add/" + sources + "peers") {
+
+            final DuplicateFilter filter = new DuplicateFilter();
+            final String[] names = names(sources);
+            int next;
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++, next++) {
+                    if (filter.add(names[next % sources], next / sources)) {
+                        result++;
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark acknowledge(final int peers) {
+        return new Benchmark("ack.addAndAcknowledge/" + peers + "peers") {
+
+            final MessageManager manager = new MessageManager();
+            final String[] names = names(peers);
+            final Message msg = message(0, 16);
+
+            {
+                for (String name : names) {
+                    manager.addPeer(name);
+                }
+            }
+
+            long run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    msg.setID(manager.getNextMessageID());
+                    manager.addMessage(msg);
+                    for (String name : names) {
+                        manager.acknowledge(name, msg.getID());
+                    }
+                }
+                return manager.getPendingCount();
+            }
+        };
+    }
+
+    private static Benchmark missedMessages(final int backlog) {
+        return new Benchmark("retransmit.getMissedMessages/" + backlog + "msgs") {
+
+            MessageManager manager;
+
+            @Override
+            void setUp() {
+                manager = new MessageManager();
+                manager.addPeer("PEER");
+                String content = message(0, 16).getContent();
+                for (int i = 0; i < backlog; i++) {
+                    int id = manager.getNextMessageID();
+                    manager.addMessage(new Message(id, id, id, "SOURCE",
+                            Message.ALL, content, Message.DATA));
+                }
+            }
+
+            @Override
+            void tearDown() {
+                manager = null;
+            }
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += manager.getMissedMessages("PEER").length;
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark history(final boolean outOfOrder) {
+        return new Benchmark("history.add/" + (outOfOrder ? "outOfOrder"
+                : "inOrder") + "/" + HistoryModel.MAX_LINES + "lines") {
+
+            final HistoryModel model = new HistoryModel();
+            final Message[] messages = new Message[1024];
+            long date;
+            int next;
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    int slot = next++ & (messages.length - 1);
+                    if (messages[slot] == null || slot == 0) {
+                        // dates jump ahead every 1024 messages so the
+                        // model keeps rolling over its oldest lines
+                        date += messages.length;
+                        for (int j = 0; j < messages.length; j++) {
+                            long d = outOfOrder ? date + (j * 7919 & 1023) : date + j;
+                            messages[j] = new Message(j, d, d, "SOURCE",
+                                    Message.ALL, "text", Message.DATA);
+                        }
+                    }
+                    result += model.add(messages[slot]);
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Benchmark fragmentation(final int payload) {
+        return new Benchmark("fragment.roundTrip/" + payload + "B", payload) {
+
+            final Message msg = message(0, payload);
+            final byte[] source = MessageCodec.utf8(msg.getSource());
+            final byte[] dest = MessageCodec.utf8(msg.getDestination());
+            final byte[] content = MessageCodec.utf8(msg.getContent());
+            final ByteBuffer datagram = ByteBuffer.allocate(OutgoingServer.BUFFER_SIZE);
+            final Reassembler reassembler = new Reassembler();
+            // same slices as SendingClient
+            final int slice = OutgoingServer.BUFFER_SIZE - MessageCodec.HEADER_SIZE -
+                    MessageCodec.FRAGMENT_HEADER_SIZE - source.length - dest.length;
+            final int count = (content.length + slice - 1) / slice;
+
+            long run(int ops) {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    msg.setID(msg.getID() + 1);
+                    Message whole = null;
+                    for (int f = 0; f < count; f++) {
+                        int offset = f * slice;
+                        datagram.clear();
+                        MessageCodec.encodeFragment(msg, source, dest, content, f, count,
+                                offset, Math.min(slice, content.length - offset), datagram);
+                        datagram.flip();
+                        whole = reassembler.add(datagram, 0);
+                    }
+                    result += whole.getContent().length();
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * messages sent through a loopback socket and decoded on the other side,
+     * one per datagram or packed into batches as OutgoingServer does
+     */
+    private static Benchmark loopback(final int payload, final boolean batching) {
+        return new Benchmark("udp." + (batching ? "batched" : "single") + "/" +
+                payload + "B", payload) {
+
+            final Message msg = message(0, payload);
+            final ByteBuffer datagram = ByteBuffer.allocateDirect(OutgoingServer.BUFFER_SIZE);
+            final ByteBuffer received = ByteBuffer.allocateDirect(OutgoingServer.BUFFER_SIZE);
+            final int length = MessageCodec.HEADER_SIZE +
+                    MessageCodec.utf8(msg.getSource()).length +
+                    MessageCodec.utf8(msg.getDestination()).length + payload;
+            DatagramChannel sender, receiver;
+            SocketAddress target;
+            int batched;
+
+            @Override
+            void setUp() throws IOException {
+                receiver = DatagramChannel.open();
+                receiver.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+                receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                receiver.configureBlocking(false);
+                target = receiver.getLocalAddress();
+                sender = DatagramChannel.open();
+            }
+
+            @Override
+            void tearDown() {
+                close(sender);
+                close(receiver);
+            }
+
+            long run(int ops) {
+                long result = 0;
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        msg.setID(i);
+                        if (batched == 0 && batching) {
+                            MessageCodec.startBatch(datagram);
+                        }
+                        MessageCodec.encodeBinary(msg, datagram);
+                        batched++;
+                        if (!batching || datagram.remaining() < length) {
+                            result += send();
+                        }
+                    }
+                    return result + send();
+                } catch (IOException err) {
+                    throw new IllegalStateException(err);
+                }
+            }
+
+            /**
+             * sends the datagram and decodes whatever the receiver got
+             */
+            private int send() throws IOException {
+                if (batched == 0) {
+                    return 0;
+                }
+                datagram.flip();
+                sender.send(datagram, target);
+                datagram.clear();
+                batched = 0;
+                int decoded = 0;
+                received.clear();
+                while (receiver.receive(received) != null) {
+                    received.flip();
+                    if (MessageCodec.isBatch(received)) {
+                        received.position(MessageCodec.BATCH_HEADER_SIZE);
+                    }
+                    while (received.hasRemaining() &&
+                            MessageCodec.decodeBinary(received) != null) {
+                        decoded++;
+                    }
+                    received.clear();
+                }
+                return decoded;
+            }
+        };
+    }
+
+    /**
+     * @return a channel bound to a loopback port that takes the datagrams of
+     * the send benchmarks without ever reading them
+     */
+    private static DatagramChannel sinkChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        return channel;
+    }
+
+    private static Message command(int payload) {
+        Message msg = message(1, payload);
+        msg.setType(Message.COMMAND);
+        return msg;
+    }
+
+    /**
+     * a send the way SendingClient used to do it: the message is converted
+     * to text, its group resolved and a new packet built every time
+     */
+    private static Benchmark sendNewPacket(final int payload) {
+        return new Benchmark("send.newPacket/" + payload + "B", payload) {
+
+            final Message msg = command(payload);
+            DatagramChannel sink;
+            DatagramSocket socket;
+            String group;
+            int port;
+
+            @Override
+            void setUp() throws IOException {
+                sink = sinkChannel();
+                group = InetAddress.getLoopbackAddress().getHostAddress();
+                port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+                socket = new DatagramSocket();
+            }
+
+            @Override
+            void tearDown() {
+                if (socket != null) {
+                    socket.close();
+                }
+                close(sink);
+            }
+
+            long run(int ops) {
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        byte[] buffer = msg.toString().getBytes(MessageCodec.TEXT_ENCODING);
+                        socket.send(new DatagramPacket(buffer, buffer.length,
+                                InetAddress.getByName(group), port));
+                    }
+                    return ops;
+                } catch (IOException err) {
+                    throw new IllegalStateException(err);
+                }
+            }
+        };
+    }
+
+    /**
+     * a send through SendingClient, which encodes into its own buffer and
+     * reuses its packet with the address resolved once
+     */
+    private static Benchmark sendClient(final int payload) {
+        return new Benchmark("send.client/" + payload + "B", payload) {
+
+            final Message msg = command(payload);
+            DatagramChannel sink;
+            SendingClient client;
+
+            @Override
+            void setUp() throws IOException {
+                sink = sinkChannel();
+                client = new SendingClient(
+                        ((InetSocketAddress) sink.getLocalAddress()).getPort(), "SOURCE",
+                        InetAddress.getLoopbackAddress().getHostAddress(), null);
+            }
+
+            @Override
+            void tearDown() {
+                if (client != null) {
+                    client.dispose();
+                }
+                close(sink);
+            }
+
+            long run(int ops) {
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        client.sendMessage(msg);
+                    }
+                    return ops;
+                } catch (IOException err) {
+                    throw new IllegalStateException(err);
+                }
+            }
+        };
+    }
+
+    private static void close(DatagramChannel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException err) {
+            err.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a new empty directory for the files of a journal
+     */
+    private static File journalDirectory() throws IOException {
+        File dir = File.createTempFile("csdemo-journal-", "");
+        dir.delete();
+        if (!dir.mkdir()) {
+            throw new IOException("unable to create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * messages sent to three peers and acknowledged by each of them one by
+     * one, every change journaled. Write amplification is the number of
+     * bytes written to journal and snapshot files per byte of content sent
+     */
+    private static Benchmark journalAppend(final int payload) {
+        return new Benchmark("journal.append/" + payload + "B", payload) {
+
+            final Message msg = message(0, payload);
+            final String[] names = names(3);
+            File dir;
+            MessageManager manager;
+            Journal journal;
+            long sent;
+
+            @Override
+            void setUp() throws IOException {
+                dir = journalDirectory();
+                manager = new MessageManager();
+                journal = new Journal(new File(dir, "bench.csdemo"), manager);
+                for (String name : names) {
+                    manager.addPeer(name);
+                }
+            }
+
+            @Override
+            void tearDown() {
+                try {
+                    if (journal != null) {
+                        journal.close();
+                    }
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+                if (dir != null) {
+                    delete(dir);
+                }
+            }
+
+            long run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    msg.setID(manager.getNextMessageID());
+                    manager.addMessage(msg);
+                    for (String name : names) {
+                        manager.acknowledge(name, msg.getID());
+                    }
+                }
+                sent += ops;
+                return manager.getPendingCount();
+            }
+
+            @Override
+            String note() {
+                return String.format("write amplification %.2f (%d bytes written for %d sent)",
+                        (double) journal.getBytesWritten() / (sent * payload),
+                        journal.getBytesWritten(), sent * payload);
+            }
+        };
+    }
+
+    /**
+     * recovery of a manager from a journal of messages sent to three peers,
+     * as left by a crash: one peer acknowledged every message, another
+     * missed every other message of the last 2000 and the last one missed
+     * the last 1000. Reported bytes are those of the journal and snapshot
+     * files read by each recovery
+     */
+    private static Benchmark journalRecover(final int count) {
+        return new Benchmark("journal.recover/" + count + "msgs") {
+
+            final String[] names = names(3);
+            File dir, snapshot;
+            Journal journal;
+            int pending;
+
+            @Override
+            void setUp() throws IOException {
+                dir = journalDirectory();
+                snapshot = new File(dir, "bench.csdemo");
+                MessageManager manager = new MessageManager();
+                journal = new Journal(snapshot, manager);
+                for (String name : names) {
+                    manager.addPeer(name);
+                }
+                for (int i = 0; i < count; i++) {
+                    Message msg = message(manager.getNextMessageID(), 64);
+                    manager.addMessage(msg);
+                    manager.acknowledge(names[0], msg.getID());
+                    if (i < count - 2000 || (i & 1) == 0) {
+                        manager.acknowledge(names[1], msg.getID());
+                    }
+                    if (i < count - 1000) {
+                        manager.acknowledge(names[2], msg.getID());
+                    }
+                }
+                // forces the journal to disk as the flusher would, the
+                // journal is never closed so nothing is compacted on exit
+                journal.run();
+                pending = manager.getPendingCount();
+                for (File file : dir.listFiles()) {
+                    bytes += file.length();
+                }
+            }
+
+            @Override
+            void tearDown() {
+                if (dir != null) {
+                    delete(dir);
+                }
+            }
+
+            long run(int ops) {
+                try {
+                    long result = 0;
+                    for (int i = 0; i < ops; i++) {
+                        MessageManager recovered = Journal.recover(snapshot);
+                        if (recovered.getPendingCount() != pending) {
+                            throw new IllegalStateException("recovered " +
+                                    recovered.getPendingCount() + " of " + pending);
+                        }
+                        result += pending;
+                    }
+                    return result;
+                } catch (IOException err) {
+                    throw new IllegalStateException(err);
+                } catch (ClassNotFoundException err) {
+                    throw new IllegalStateException(err);
+                }
+            }
+
+            @Override
+            String note() {
+                return String.format("%d pending messages recovered from %d bytes" +
+                        " (journals beyond %d bytes are compacted)", pending, bytes,
+                        Journal.MAX_SIZE);
+            }
+        };
+    }
+
+    private static String[] names(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "PEER" + i;
+        }
+        return names;
+    }
+
+    private static int[] scales(String property, String defaults) {
+        String[] parts = System.getProperty(property, defaults).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static boolean selected(String name, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package clientserverdemo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Small cache that maps UTF-8 encoded names read in place from a buffer to
+ * String objects, so repeated names (sources and destinations of messages)
+ * are materialized only once. Entries are replaced on collision. Not thread
+ * safe, each receiving thread should use its own cache
+ * @author Yasser Jaffal
+ */
+class NameCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final byte[][] keys;
+    private final String[] names;
+    private final int mask;
+
+    /**
+     * Constructor
+     * @param size number of cached names, rounded up to a power of two
+     */
+    public NameCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        keys = new byte[capacity][];
+        names = new String[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * returns the name stored in the passed region of the buffer
+     * @param src buffer to read from, position is not changed
+     * @param offset absolute index of the first byte of the name
+     * @param length length in bytes of the name
+     * @return decoded name
+     */
+    public String get(ByteBuffer src, int offset, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + src.get(offset + i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        byte[] key = keys[slot];
+        if (key != null && key.length == length) {
+            int i = 0;
+            while (i < length && key[i] == src.get(offset + i)) {
+                i++;
+            }
+            if (i == length) {
+                return names[slot];
+            }
+        }
+        key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = src.get(offset + i);
+        }
+        keys[slot] = key;
+        names[slot] = new String(key, UTF8);
+        return names[slot];
+    }
+}
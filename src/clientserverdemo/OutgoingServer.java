@@ -1,21 +1,59 @@
 package clientserverdemo;
+import java.io.IOException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A server that receives messages from client
- * and sends them to other peers
+ * and sends them to other peers. Largest datagram size is read from the
+ * system property <B>clientserverdemo.datagramSize</B>, longer messages are
+ * sent as fragments. Binary messages that are ready together are packed into
+ * as few datagrams as possible (see MessageCodec), a batch waits for more
+ * messages at most <B>clientserverdemo.batchLatency</B> microseconds
+ * (default 0: only messages already waiting are packed). Batching is turned
+ * off by <B>clientserverdemo.noBatching</B>. Data messages are held back while
+ * the server drains its socket, so commands and acknowledgements that
+ * arrived behind them are broadcast first; at most
+ * <B>clientserverdemo.dataLane</B> data messages (default 64, 0 turns this
+ * off) are held back, beyond that the oldest is sent
  * @author Yasser Jaffal
  */
-public class OutgoingServer extends Thread {
+public class OutgoingServer implements EventLoop.DatagramHandler {
 
     private int listeningPort;
     private int sendingPort;
-    public static final int BUFFER_SIZE = 256;
+    public static final int BUFFER_SIZE =
+            Integer.getInteger("clientserverdemo.datagramSize", 1400);
     public static final int TIMEOUT = 1;
-    private boolean active = true;
+    public static final boolean BATCHING =
+            !Boolean.getBoolean("clientserverdemo.noBatching");
+    public static final long BATCH_LATENCY = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("clientserverdemo.batchLatency", 0));
+    private String name;
     private String sendGroup;
-    private DatagramSocket listeningSocket;
-    private MulticastSocket sendingSocket;
+    private DatagramChannel listeningChannel;
+    private DatagramChannel sendingChannel;
+    private InetSocketAddress groupAddress;
+    private EventLoop loop;
+    private BufferPool pool;
+    private ByteBuffer batch;
+    private int batched;
+    private long batchStarted;
+    private boolean flushScheduled;
+    private Runnable flushTask;
+    private long messagesSent, datagramsSent;
+    public static final int DATA_LANE =
+            Integer.getInteger("clientserverdemo.dataLane", 64);
+    private final ArrayDeque<ByteBuffer> deferred = new ArrayDeque<ByteBuffer>();
+    private static final LongAdder RECEIVED = Metrics.counter("outgoing.received");
+    private static final LongAdder MALFORMED = Metrics.counter("outgoing.malformed");
+    private static final LongAdder MESSAGES = Metrics.counter("outgoing.messages");
+    private static final LongAdder DATAGRAMS = Metrics.counter("outgoing.datagrams");
 
     /**
      * Constructor
@@ -26,14 +64,31 @@ public class OutgoingServer extends Thread {
      * @param sendGroup IP broadcasting group to which this server will be sending messages
      */
     public OutgoingServer(int inPort, int outPort, String name, String receiveGroup, String sendGroup) {
-        super(name);
+        this.name = name;
         listeningPort = inPort;
         sendingPort = outPort;
         this.sendGroup = sendGroup;
+        loop = EventLoop.getShared();
+        pool = BufferPool.getShared();
+        batch = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        flushTask = new Runnable() {
 
+            public void run() {
+                flushScheduled = false;
+                try {
+                    flush();
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+            }
+        };
         try {
-            listeningSocket = new DatagramSocket(listeningPort);
-            sendingSocket = new MulticastSocket(sendingPort);
+            listeningChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            listeningChannel.bind(new InetSocketAddress(listeningPort));
+            sendingChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            sendingChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            groupAddress = new InetSocketAddress(
+                    InetAddress.getByName(sendGroup), sendingPort);
         } catch (Exception ex) {
             ex.printStackTrace();
             System.exit(1);
@@ -41,11 +96,36 @@ public class OutgoingServer extends Thread {
 
     }
 
+    /**
+     * starts listening by registering this server with the shared event loop
+     */
+    public void start() {
+        try {
+            loop.register(listeningChannel, this);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     /**
      * shuts down the server
      */
     public void deactivate() {
-        active = false;
+        loop.close(listeningChannel);
+        try {
+            sendingChannel.close();
+        } catch (IOException err) {
+        }
+        Log.info(getName(), "sent " + messagesSent + " messages in " +
+                datagramsSent + " datagrams");
+    }
+
+    /**
+     * @return name of this server
+     */
+    public String getName() {
+        return name;
     }
 
     /**
@@ -57,51 +137,145 @@ public class OutgoingServer extends Thread {
     }
 
     /**
-     * Overrides Thread.run() method:<BR>
-     * This method keeps listening on listening port, receiving messages from client
-     * and broadcasts them to other peers.<BR>
-     * A call to deactivate() stops this method from listening
+     * Called by the event loop whenever messages are waiting on the listening
+     * port:<BR>
+     * This method receives the waiting messages from client and broadcasts
+     * them to other peers. Binary messages are received into a pooled buffer
+     * and broadcasted as they are without being decoded, packed together
+     * with the other waiting messages when batching is on
+     * @param channel the listening channel
+     * @throws IOException if error occures while receiving or broadcasting
      */
-    @Override
-    public void run() {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        DatagramPacket incoming, outgoing;
-
+    public void datagramReady(DatagramChannel channel) throws IOException {
+        ByteBuffer buffer = pool.acquire();
 
         try {
-            listeningSocket.setSoTimeout(TIMEOUT);
-            while (active) {
-                buffer = new byte[BUFFER_SIZE];
-                incoming = new DatagramPacket(buffer, buffer.length);
-
-                try {
-                    listeningSocket.receive(incoming);
-                } catch (SocketTimeoutException err) {
+            while (channel.receive(buffer) != null) {
+                buffer.flip();
+                pool.messageReceived();
+                RECEIVED.increment();
+                if (!MessageCodec.isBinary(buffer) && !reencode(buffer)) {
+                    MALFORMED.increment();
+                    buffer.clear();
+                    continue;
+                }
+                if (DATA_LANE > 0 && MessageCodec.isBinary(buffer) &&
+                        MessageCodec.peekType(buffer) == Message.DATA) {
+                    if (deferred.size() == DATA_LANE) {
+                        ByteBuffer oldest = deferred.poll();
+                        forward(oldest);
+                        pool.release(oldest);
+                    }
+                    deferred.add(buffer);
+                    buffer = pool.acquire();
                     continue;
                 }
+                forward(buffer);
+                buffer.clear();
+            }
+            ByteBuffer data;
+            while ((data = deferred.poll()) != null) {
+                forward(data);
+                pool.release(data);
+            }
+        } finally {
+            pool.release(buffer);
+            ByteBuffer data;
+            while ((data = deferred.poll()) != null) {
+                pool.release(data);
+            }
+        }
+
+        if (batched > 0) {
+            // the flush is scheduled on the event loop, which waits in
+            // System.nanoTime(), so the batch is timed with the same clock
+            long wait = BATCH_LATENCY - (System.nanoTime() - batchStarted);
+            if (wait <= 0) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                loop.schedule(listeningChannel, flushTask, wait);
+            }
+        }
+    }
 
-                String data = new String(incoming.getData(), 0, incoming.getLength(), "Windows-1256");
-                Message serverMessage = Message.decodeMessage(data);
+    /**
+     * utility method to broadcast a message, packed into the current batch
+     * when batching is on
+     */
+    private void forward(ByteBuffer message) throws IOException {
+        if (BATCHING && MessageCodec.isBinary(message) &&
+                message.remaining() <= BUFFER_SIZE - MessageCodec.BATCH_HEADER_SIZE) {
+            append(message);
+        } else {
+            flush();
+            send(message, 1);
+        }
+    }
 
-                String msg = serverMessage.toString();
-                buffer = msg.getBytes("Windows-1256");
+    /**
+     * utility method to add a message to the current batch, the batch is
+     * sent first if the message does not fit in it
+     */
+    private void append(ByteBuffer message) throws IOException {
+        if (batched > 0 && batch.remaining() < message.remaining()) {
+            flush();
+        }
+        if (batched == 0) {
+            batch.clear();
+            MessageCodec.startBatch(batch);
+            batchStarted = System.nanoTime();
+        }
+        batch.put(message);
+        batched++;
+    }
 
-                //javax.swing.JOptionPane.showMessageDialog(null, msg);
-                outgoing = new DatagramPacket(buffer,
-                        buffer.length,
-                        InetAddress.getByName(sendGroup),
-                        sendingPort);
+    /**
+     * utility method to send the current batch, a batch of a single message
+     * is sent as a plain message
+     */
+    private void flush() throws IOException {
+        if (batched == 0) {
+            return;
+        }
+        batch.flip();
+        if (batched == 1) {
+            batch.position(MessageCodec.BATCH_HEADER_SIZE);
+        }
+        send(batch, batched);
+        batched = 0;
+    }
 
-                sendingSocket.send(outgoing);
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
-        } finally {
-            listeningSocket.close();
-            if (sendingSocket != null) {
-                sendingSocket.close();
-            }
+    /**
+     * utility method to broadcast a datagram holding the passed number
+     * of messages
+     */
+    private void send(ByteBuffer datagram, int messages) throws IOException {
+        sendingChannel.send(datagram, groupAddress);
+        messagesSent += messages;
+        datagramsSent++;
+        MESSAGES.add(messages);
+        DATAGRAMS.increment();
+    }
+
+    /**
+     * decodes a text encoded message and encodes it again in the buffer
+     * using the current format
+     * @param buffer buffer holding a text message
+     * @return true if buffer is ready to be sent, false if message is invalid
+     */
+    private boolean reencode(ByteBuffer buffer) {
+        Message serverMessage = MessageCodec.decode(buffer);
+        buffer.clear();
+        if (serverMessage == null) {
+            return false;
+        }
+        try {
+            MessageCodec.encode(serverMessage, buffer);
+        } catch (BufferOverflowException err) {
+            return false;
         }
+        buffer.flip();
+        return true;
     }
 }
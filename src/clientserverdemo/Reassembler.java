@@ -0,0 +1,221 @@
+package clientserverdemo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Reassembles fragmented messages. Memory used by incomplete messages is
+ * bounded, the oldest incomplete messages are dropped when the bound is
+ * exceeded or when no fragment of them arrives within the timeout. Incomplete
+ * messages that stop receiving fragments for a while are reported so the
+ * sender could resend only the missing fragments. Not thread safe, each
+ * receiving client uses its own reassembler from a single thread
+ * @author Yasser Jaffal
+ */
+class Reassembler {
+
+    public static final long REPORT_DELAY = 500;
+    public static final long TIMEOUT =
+            Long.getLong("clientserverdemo.reassemblyTimeout", 30000);
+    public static final long MAX_BYTES =
+            Long.getLong("clientserverdemo.reassemblyBytes", 16 << 20);
+    private static final int COMPLETED_SIZE = 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final LinkedHashMap<String, Partial> partials =
+            new LinkedHashMap<String, Partial>();
+    private final LinkedHashMap<String, Long> completed =
+            new LinkedHashMap<String, Long>() {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > COMPLETED_SIZE;
+                }
+            };
+    private long bytes;
+
+    /**
+     * Incomplete message
+     */
+    static class Partial {
+
+        String source, dest;
+        int id, type, count, received;
+        long creationDate, sendingDate, lastUpdate, reserved;
+        byte[] content;
+        BitSet fragments;
+        boolean reported;
+    }
+
+    /**
+     * adds a received fragment
+     * @param src buffer positioned at a well formed fragment
+     * @param now current time in milliseconds
+     * @return the whole message if this fragment completes it, null otherwise
+     */
+    public Message add(ByteBuffer src, long now) {
+        String source = string(src, MessageCodec.sourceOffset(src),
+                MessageCodec.sourceLength(src));
+        String dest = string(src, MessageCodec.destinationOffset(src),
+                MessageCodec.destinationLength(src));
+        int id = MessageCodec.peekID(src);
+        // fragments resent to a single client complete the broadcast they
+        // belong to, but a message completed as a broadcast could still be
+        // resent as a whole to a client that missed it
+        String key = source + ":" + id;
+        if (completed.containsKey(completedKey(key, dest))) {
+            return null;
+        }
+        int count = MessageCodec.peekFragmentCount(src);
+        int total = MessageCodec.peekTotalLength(src);
+        int index = MessageCodec.peekFragmentIndex(src);
+        int offset = MessageCodec.peekContentOffset(src);
+        int length = MessageCodec.contentLength(src);
+        // every fragment carries at least one byte of content, so a message
+        // never has more fragments than bytes
+        if (count <= 0 || count > Math.max(1, total) || index < 0 ||
+                index >= count || total < 0 || total > MAX_BYTES ||
+                offset < 0 || offset > total - length) {
+            return null;
+        }
+
+        Partial p = partials.remove(key);
+        if (p == null) {
+            p = new Partial();
+            p.source = source;
+            p.dest = dest;
+            p.id = id;
+            p.type = MessageCodec.peekType(src);
+            p.creationDate = MessageCodec.peekCreationDate(src);
+            p.count = count;
+            p.content = new byte[total];
+            p.fragments = new BitSet(count);
+            p.reserved = total + ((count + 63) >>> 6) * 8L;
+            bytes += p.reserved;
+        } else if (p.count != count || p.content.length != total) {
+            bytes -= p.reserved;
+            return null;
+        }
+        p.sendingDate = MessageCodec.peekSendingDate(src);
+        p.lastUpdate = now;
+        p.reported = false;
+        if (!p.fragments.get(index)) {
+            p.fragments.set(index);
+            p.received++;
+            int from = MessageCodec.contentOffset(src);
+            for (int i = 0; i < length; i++) {
+                p.content[offset + i] = src.get(from + i);
+            }
+        }
+
+        if (p.received == p.count) {
+            bytes -= p.reserved;
+            completed.put(completedKey(key, p.dest), now);
+            completed.put(completedKey(key, dest), now);
+            return new Message(p.id, p.creationDate, p.sendingDate,
+                    p.source, p.dest, new String(p.content, UTF8), p.type);
+        }
+        partials.put(key, p);
+        while (bytes > MAX_BYTES && !partials.isEmpty()) {
+            drop(partials.keySet().iterator().next());
+        }
+        return null;
+    }
+
+    /**
+     * drops timed out messages and returns the messages that should be
+     * reported to their senders
+     * @param now current time in milliseconds
+     * @return incomplete messages that received no fragment for REPORT_DELAY
+     */
+    public List<Partial> expire(long now) {
+        List<Partial> due = new ArrayList<Partial>();
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial p = it.next();
+            if (now - p.lastUpdate > TIMEOUT) {
+                bytes -= p.reserved;
+                it.remove();
+            } else if (!p.reported && now - p.lastUpdate > REPORT_DELAY) {
+                p.reported = true;
+                due.add(p);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return true if there are no incomplete messages
+     */
+    public boolean isEmpty() {
+        return partials.isEmpty();
+    }
+
+    /**
+     * @return bytes currently reserved by the content and fragment sets of
+     * incomplete messages
+     */
+    public long getBufferedBytes() {
+        return bytes;
+    }
+
+    /**
+     * encodes a set of fragment indexes as text to be sent as message content
+     * @param fragments set of fragment indexes
+     * @return hexadecimal 64 bit words separated by commas
+     */
+    public static String encodeFragments(BitSet fragments) {
+        StringBuilder result = new StringBuilder();
+        for (long word : fragments.toLongArray()) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(Long.toHexString(word));
+        }
+        return result.toString();
+    }
+
+    /**
+     * decodes a set of fragment indexes encoded by encodeFragments()
+     * @param text encoded set
+     * @return set of fragment indexes
+     * @throws NumberFormatException if text is malformed
+     */
+    public static BitSet decodeFragments(String text) {
+        if (text.length() == 0) {
+            return new BitSet();
+        }
+        String[] words = text.split(",");
+        long[] result = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            result[i] = Long.parseUnsignedLong(words[i], 16);
+        }
+        return BitSet.valueOf(result);
+    }
+
+    /**
+     * utility method to find the key of a completed message by destination
+     */
+    private static String completedKey(String key, String dest) {
+        return dest.equals(Message.ALL) ? key : key + ">" + dest;
+    }
+
+    /**
+     * utility method to drop an incomplete message
+     */
+    private void drop(String key) {
+        Partial p = partials.remove(key);
+        bytes -= p.reserved;
+    }
+
+    /**
+     * utility method to read a UTF-8 string from the buffer
+     */
+    private static String string(ByteBuffer src, int offset, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = src.get(offset + i);
+        }
+        return new String(result, UTF8);
+    }
+}
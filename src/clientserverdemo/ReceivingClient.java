@@ -1,102 +1,212 @@
 package clientserverdemo;
 import java.io.*;
 import java.net.*;
-import javax.swing.JTextArea;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This client works as message inbox, it receives messages from the server and
- * sends them to the client manager to be handled
+ * sends them to the client engine to be handled. Messages are handled on a
+ * dispatching thread that blocks while the inbox is empty, a platform or a
+ * virtual thread (see Threads). Control messages (commands and
+ * acknowledgements) and data messages are queued in separate lanes and
+ * control messages are always handled first, so acknowledgements never wait
+ * behind a flood of data. Each lane is bounded on its own, data messages
+ * dropped when their lane is full are forgotten by the incoming server's
+ * duplicate filter, so they are recovered by retransmission
  * @author Yasser Jaffal
  */
-public class ReceivingClient extends Thread {
+public class ReceivingClient implements EventLoop.DatagramHandler {
 
-    private boolean active = true;
-    private DatagramSocket serverSocket;
-    private ClientManager manager;
-    private JTextArea history;
+    private String name;
+    private DatagramChannel serverChannel;
+    private ClientEngine manager;
+    private EventLoop loop;
+    private BufferPool pool;
+    private ArrayBlockingQueue<ByteBuffer> inbox;
+    private ArrayBlockingQueue<ByteBuffer> controlInbox;
+    private Semaphore ready;
+    private Thread dispatcher;
+    private Reassembler reassembler;
+    private volatile boolean active = true;
+    public static final int INBOX_SIZE = 512;
+    public static final int CONTROL_INBOX_SIZE = 1024;
+    private static final LongAdder RECEIVED = Metrics.counter("receiving.received");
+    private static final LongAdder INBOX_FULL = Metrics.counter("receiving.inboxFull");
+    private static final LongAdder CONTROL_FULL =
+            Metrics.counter("receiving.controlInboxFull");
 
     /**
      * Constructor
      * @param port communication port on which this client will be listening
      * @param name name of this client (should be same as server's name), unique
      * @param rGroup IP group from which this client will be receivng messages
-     * @param manager reference to ClientManager object that will handle received messages
+     * @param manager reference to ClientEngine object that will handle received messages
      */
-    public ReceivingClient(int port, String name, String rGroup, ClientManager manager) {
-        super(name);
-        history = manager.getHistoryArea();
+    public ReceivingClient(int port, final String name, String rGroup, ClientEngine manager) {
+        this.name = name;
         this.manager = manager;
+        loop = EventLoop.getShared();
+        pool = BufferPool.getShared();
+        inbox = new ArrayBlockingQueue<ByteBuffer>(INBOX_SIZE);
+        controlInbox = new ArrayBlockingQueue<ByteBuffer>(CONTROL_INBOX_SIZE);
+        ready = new Semaphore(0);
+        reassembler = new Reassembler();
+        dispatcher = Threads.newThread(name, new Runnable() {
+
+            public void run() {
+                dispatchLoop();
+            }
+        });
         try {
-            serverSocket = new DatagramSocket(port);
+            serverChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            // room for bursts forewarded by the server, which has already
+            // recorded them as received
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            serverChannel.bind(new InetSocketAddress(port));
         } catch (Exception ex) {
             ex.printStackTrace();
             System.exit(1);
         }
     }
 
+    /**
+     * starts listening by registering this client with the shared event loop
+     */
+    public void start() {
+        dispatcher.start();
+        try {
+            loop.register(serverChannel, this);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     /**
      * shuts down the client
      */
     public void deactivate() {
         active = false;
+        loop.close(serverChannel);
+        dispatcher.interrupt();
     }
 
     /**
-     * Overrides Thread.run() method:<BR>
-     * This method keeps listening on listening port, receiving messages from server
-     * and forewards it to ClientManager<BR>
-     * A call to deactivate() stops this method from listening
+     * @return name of this client
      */
-    @Override
-    public void run() {
-        byte[] buffer = new byte[OutgoingServer.BUFFER_SIZE];
-        DatagramPacket fromServer = null;
-
-        try {
-            serverSocket.setSoTimeout(OutgoingServer.TIMEOUT);
-            while (active) {
-                buffer = new byte[OutgoingServer.BUFFER_SIZE];
-                fromServer = new DatagramPacket(buffer, buffer.length);
+    public String getName() {
+        return name;
+    }
 
+    /**
+     * Called by the event loop whenever messages are waiting on the listening
+     * port:<BR>
+     * This method receives the waiting messages from server into pooled
+     * buffers and queues them to be decoded and forewarded to ClientEngine on
+     * this client's own dispatching thread, so slow handling never stalls the
+     * event loop. Messages are dropped if their lane is full
+     * @param channel the listening channel
+     * @throws IOException if error occures while receiving
+     */
+    public void datagramReady(DatagramChannel channel) throws IOException {
+        ByteBuffer buffer = pool.acquire();
 
-                try {
-                    serverSocket.receive(fromServer);
-                } catch (SocketTimeoutException err) {
-                    continue;
+        while (channel.receive(buffer) != null) {
+            buffer.flip();
+            pool.messageReceived();
+            RECEIVED.increment();
+            boolean control = MessageCodec.isBinary(buffer) &&
+                    MessageCodec.peekType(buffer) != Message.DATA;
+            if ((control ? controlInbox : inbox).offer(buffer)) {
+                ready.release();
+                buffer = pool.acquire();
+            } else {
+                (control ? CONTROL_FULL : INBOX_FULL).increment();
+                if (!control) {
+                    forget(buffer);
                 }
+                buffer.clear();
+            }
+        }
+        pool.release(buffer);
+    }
 
-                buffer = fromServer.getData();
-                String data = new String(buffer, 0, buffer.length, "Windows-1256");
-                fromServer = new DatagramPacket(buffer, buffer.length);
-                Message clientMessage = Message.decodeMessage(data);
-
-                System.out.println(getName() + "<--" + clientMessage);
-
-                if (clientMessage.getType() == Message.DATA) {
-                    /*history.append(clientMessage.getSource() + ": " +
-                            clientMessage.getContent() + "\n");*/
-                    manager.addMessage(clientMessage);
-
-                    if (!clientMessage.getSource().equals(getName())) {
+    /**
+     * utility method to have the incoming server forget a dropped data
+     * message, so its retransmission is not dropped as a duplicate. Missing
+     * fragments are reported on reassembly instead
+     */
+    private void forget(ByteBuffer buffer) {
+        Message msg;
+        if (!MessageCodec.isBinary(buffer)) {
+            msg = MessageCodec.decodeText(buffer);
+        } else if (!MessageCodec.isFragment(buffer)) {
+            msg = MessageCodec.decodeBinary(buffer, false);
+        } else {
+            return;
+        }
+        if (msg != null && msg.getType() == Message.DATA) {
+            manager.forget(msg);
+        }
+    }
 
-                        manager.sendAck(clientMessage);
-                    }
-                } else if (clientMessage.getType() == Message.ACKNOWLEDGE) {
-                    if (clientMessage.getSource().equals(getName())) {
-                        continue;
-                    }
-                    //System.out.println(getName() + " RC received ACK");
-                    manager.acknowledgeMessage(clientMessage);
-                } else if (clientMessage.getType() == Message.COMMAND) {
-                    manager.processCommand(clientMessage);
+    /**
+     * Keeps taking received buffers from the inbox, control lane first,
+     * decoding them and passing
+     * them to ClientEngine until this client is deactivated. Content of
+     * acknowledgements is never used, so it is not decoded. Fragments are
+     * reassembled first, and senders of incomplete messages are told which
+     * fragments arrived so they resend only the missing ones
+     */
+    private void dispatchLoop() {
+        while (active) {
+            ByteBuffer buffer = null;
+            try {
+                if (reassembler.isEmpty()) {
+                    ready.acquire();
+                    buffer = next();
+                } else if (ready.tryAcquire(Reassembler.REPORT_DELAY,
+                        TimeUnit.MILLISECONDS)) {
+                    buffer = next();
+                }
+            } catch (InterruptedException err) {
+                continue;
+            }
+            long now = Clock.millis();
+            Message clientMessage = null;
+            if (buffer == null) {
+                // nothing received, only incomplete messages need checking
+            } else if (!MessageCodec.isBinary(buffer)) {
+                clientMessage = MessageCodec.decode(buffer);
+            } else if (MessageCodec.isFragment(buffer)) {
+                clientMessage = reassembler.add(buffer, now);
+            } else {
+                int type = MessageCodec.peekType(buffer);
+                clientMessage = MessageCodec.decodeBinary(buffer,
+                        type != Message.ACKNOWLEDGE && type != Message.CUMULATIVE_ACK);
+            }
+            if (buffer != null) {
+                pool.release(buffer);
+            }
+            if (clientMessage != null) {
+                manager.dispatch(clientMessage);
+            }
+            if (!reassembler.isEmpty()) {
+                for (Reassembler.Partial p : reassembler.expire(now)) {
+                    manager.reportFragments(p.source, p.id, p.fragments);
                 }
-
             }
-        } catch (IOException err) {
-            System.err.println(err.getMessage());
-            err.printStackTrace();
-        } finally {
-            serverSocket.close();
         }
     }
+
+    /**
+     * utility method to take the next received buffer, control lane first
+     */
+    private ByteBuffer next() {
+        ByteBuffer buffer = controlInbox.poll();
+        return buffer != null ? buffer : inbox.poll();
+    }
 }
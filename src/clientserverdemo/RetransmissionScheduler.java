@@ -0,0 +1,217 @@
+package clientserverdemo;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resends missed messages of a ClientEngine off the Swing event thread.
+ * Each known peer has its own deadline, which backs off exponentially
+ * (DELAY, 2 x DELAY, 4 x DELAY...) with the number of failed tries and goes
+ * back to DELAY once the peer acknowledges. A message is resent only if it is
+ * older than DELAY, so acknowledgements still in flight are not raced.
+ * Resending is paced by a token bucket instead of sleeping between messages,
+ * a round cut short by pacing resumes after the last resent message.
+ * Schedulers of all clients share one ScheduledExecutorService (see Threads)
+ * whose size is read from the system property
+ * <B>clientserverdemo.retransmitThreads</B>; pacing is read from <B>clientserverdemo.resendRate</B> (messages/second)
+ * and <B>clientserverdemo.resendBurst</B>. When a peer reported which
+ * fragments of a long message it already has, only the missing fragments are
+ * resent
+ * @author Yasser Jaffal
+ */
+public class RetransmissionScheduler implements Runnable {
+
+    public static final int DELAY = 3000;
+    public static final int TRIES = 3;
+    public static final int MAX_BACKOFF = 4;
+    private static final int MAX_REPORTS = 256;
+    private static ScheduledExecutorService executor;
+    private static final LongAdder RETRANSMITTED =
+            Metrics.counter("retransmit.messages");
+    private final ClientEngine manager;
+    private final MessageManager mManager;
+    private final SendingClient client;
+    private final TokenBucket bucket;
+    private final HashMap<String, Long> deadlines = new HashMap<String, Long>();
+    private final HashMap<String, Integer> resumeAfter = new HashMap<String, Integer>();
+    private final LinkedHashMap<String, BitSet> receivedFragments =
+            new LinkedHashMap<String, BitSet>() {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BitSet> eldest) {
+                    return size() > MAX_REPORTS;
+                }
+            };
+    private volatile boolean active;
+    private ScheduledFuture<?> next;
+
+    /**
+     * Constructor
+     * @param manager ClientEngine whose missed messages are resent, also used for logging
+     * @param mManager MessageManager holding missed messages
+     * @param client client used to resend messages
+     */
+    public RetransmissionScheduler(ClientEngine manager,
+            MessageManager mManager, SendingClient client) {
+        this.manager = manager;
+        this.mManager = mManager;
+        this.client = client;
+        bucket = new TokenBucket(
+                Integer.getInteger("clientserverdemo.resendRate", 50),
+                Integer.getInteger("clientserverdemo.resendBurst", 10));
+    }
+
+    /**
+     * @return executor shared by schedulers of all clients in this process
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Threads.newScheduledExecutor("retransmission",
+                    Integer.getInteger("clientserverdemo.retransmitThreads", 1));
+        }
+        return executor;
+    }
+
+    /**
+     * starts checking for missed messages
+     */
+    public synchronized void start() {
+        active = true;
+        schedule(TimeUnit.MILLISECONDS.toNanos(DELAY));
+    }
+
+    /**
+     * stops checking for missed messages
+     */
+    public synchronized void stop() {
+        active = false;
+        if (next != null) {
+            next.cancel(false);
+        }
+    }
+
+    /**
+     * records fragments of a message that a peer reported as received, so
+     * the next resend of the message to this peer skips them
+     * @param peer name of the peer
+     * @param id ID of the fragmented message
+     * @param fragments indexes of received fragments
+     */
+    public void fragmentsReceived(String peer, int id, BitSet fragments) {
+        synchronized (receivedFragments) {
+            receivedFragments.put(peer + ":" + id, fragments);
+        }
+    }
+
+    /**
+     * utility method to get and forget fragments reported by a peer, a report
+     * is used once since the peer drops incomplete messages after a while
+     */
+    private BitSet takeFragments(String peer, int id) {
+        synchronized (receivedFragments) {
+            return receivedFragments.remove(peer + ":" + id);
+        }
+    }
+
+    /**
+     * utility method to run the next check after the passed delay
+     */
+    private synchronized void schedule(long nanos) {
+        if (active) {
+            next = getExecutor().schedule(this, nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Checks every peer whose deadline has passed and resends its missed
+     * messages, then schedules itself to run at the earliest next deadline
+     */
+    public void run() {
+        if (!active) {
+            return;
+        }
+        long now = Clock.nanos();
+        long earliest = now + TimeUnit.MILLISECONDS.toNanos(DELAY);
+        try {
+            for (String peer : mManager.getKnownPeers()) {
+                Long deadline = deadlines.get(peer);
+                if (deadline == null) {
+                    deadline = now + getDelay(peer);
+                } else if (deadline - now <= 0) {
+                    deadline = retransmit(peer, now);
+                }
+                deadlines.put(peer, deadline);
+                if (deadline - earliest < 0) {
+                    earliest = deadline;
+                }
+            }
+        } catch (RuntimeException err) {
+            err.printStackTrace();
+        }
+        schedule(Math.max(0, earliest - now));
+    }
+
+    /**
+     * resends missed messages of a single peer
+     * @param peer name of the peer
+     * @param now current Clock.nanos()
+     * @return next deadline of the peer
+     */
+    private long retransmit(String peer, long now) {
+        int tries = mManager.getTries(peer);
+        if (tries == TRIES) {
+            mManager.increaseTries(peer);
+            manager.log("now belives that " + peer + " is offline");
+            return now + getDelay(peer);
+        } else if (tries > TRIES) {
+            return now + getDelay(peer);
+        }
+
+        Message[] missed = mManager.getMissedMessages(peer);
+        long oldest = Clock.millis() - DELAY;
+        Integer resume = resumeAfter.remove(peer);
+        int sent = 0;
+        int lastSent = 0;
+        for (Message msg : missed) {
+            if (msg.getCreationDate() > oldest ||
+                    (resume != null && msg.getID() <= resume)) {
+                continue;
+            }
+            if (!bucket.tryAcquire()) {
+                if (sent > 0 || resume != null) {
+                    resumeAfter.put(peer, sent > 0 ? lastSent : resume);
+                }
+                return now + Math.max(bucket.nanosUntilAvailable(), 1);
+            }
+            manager.log("sending missed message " + msg.getID() +
+                    " to " + peer + "[" + tries + "]");
+            msg.resurrect();
+            try {
+                client.resendMessage(msg, takeFragments(peer, msg.getID()));
+                RETRANSMITTED.increment();
+            } catch (IOException err) {
+                manager.warn("unable to resend message " + msg.getID());
+            }
+            lastSent = msg.getID();
+            sent++;
+        }
+        if (sent > 0) {
+            mManager.increaseTries(peer);
+        }
+        return now + getDelay(peer);
+    }
+
+    /**
+     * @param peer name of the peer
+     * @return current retransmission delay of the peer in nanoseconds
+     */
+    private long getDelay(String peer) {
+        int shift = Math.min(mManager.getTries(peer), MAX_BACKOFF);
+        return TimeUnit.MILLISECONDS.toNanos((long) DELAY << shift);
+    }
+}
@@ -0,0 +1,138 @@
+package clientserverdemo;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+
+/**
+ * Measures the cost of endpoints: runs a growing number of headless clients
+ * in this process and prints, for every step, the number of threads, the
+ * resident memory and the CPU time used while the clients were idle, and how
+ * long one message took to reach all of them. Run it once per execution mode
+ * to compare them, for example:<BR>
+ * <B>java -Dclientserverdemo.threads=virtual clientserverdemo.ScalingBenchmark 10 100 1000</B><BR>
+ * with or without <B>-Dclientserverdemo.sharedTransport=true</B>. Client
+ * status files are kept in a temporary directory
+ * @author Yasser Jaffal
+ */
+public class ScalingBenchmark {
+
+    private static final long SETTLE = Long.getLong(
+            "clientserverdemo.benchmarkSettle", 2000);
+    private static final long DELIVERY_TIMEOUT = 10000;
+
+    /**
+     * main method
+     * @param args numbers of endpoints to measure, in increasing order
+     * @throws Exception if benchmark could not be run
+     */
+    public static void main(String[] args) throws Exception {
+        File home = File.createTempFile("csdemo-", "");
+        home.delete();
+        home.mkdirs();
+        System.setProperty("user.home", home.getPath());
+        PrintStream report = System.out;
+        // log lines of thousands of clients would measure the console
+        System.setOut(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        report.println("mode: " + (Threads.VIRTUAL ? "virtual" : "platform") +
+                " threads, " + (SharedTransport.ENABLED ? "shared" : "own") +
+                " transport");
+        report.println("endpoints\tthreads\trss(KB)\tidle cpu(ms)\tdelivery(ms)");
+        ArrayList<ClientEngine> engines = new ArrayList<ClientEngine>();
+        for (String arg : args) {
+            int count = Integer.parseInt(arg);
+            while (engines.size() < count) {
+                ClientEngine engine = new ClientEngine(
+                        "E" + engines.size(), "127.0.0.1", null);
+                engine.start();
+                engines.add(engine);
+            }
+            Thread.sleep(SETTLE);
+            long cpu = getProcessCpuTime();
+            Thread.sleep(SETTLE);
+            cpu = getProcessCpuTime() - cpu;
+
+            long[] before = new long[engines.size()];
+            for (int i = 0; i < before.length; i++) {
+                before[i] = engines.get(i).getReceivedCount();
+            }
+            long start = System.nanoTime();
+            engines.get(0).send("benchmark " + count);
+            int pending = before.length;
+            while (pending > 0 &&
+                    System.nanoTime() - start < DELIVERY_TIMEOUT * 1000000L) {
+                pending = 0;
+                for (int i = 0; i < before.length; i++) {
+                    if (engines.get(i).getReceivedCount() == before[i]) {
+                        pending++;
+                    }
+                }
+                Thread.sleep(1);
+            }
+            long delivery = (System.nanoTime() - start) / 1000000;
+
+            report.println(count + "\t" +
+                    ManagementFactory.getThreadMXBean().getThreadCount() + "\t" +
+                    getResidentSize() + "\t" +
+                    (cpu < 0 ? "n/a" : String.valueOf(cpu / 1000000)) + "\t" +
+                    (pending == 0 ? String.valueOf(delivery)
+                    : pending + " not reached"));
+        }
+        for (ClientEngine engine : engines) {
+            engine.close();
+        }
+        for (File f : home.listFiles()) {
+            f.delete();
+        }
+        home.delete();
+        System.exit(0);
+    }
+
+    /**
+     * @return resident memory of this process in KB as reported by the
+     * operating system, used heap if not available
+     */
+    private static long getResidentSize() {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).trim()
+                                .split("\\s+")[0]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException err) {
+        }
+        Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / 1024;
+    }
+
+    /**
+     * @return CPU time used by this process in nanoseconds, -1 if not
+     * available
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
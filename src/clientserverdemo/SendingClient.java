@@ -5,10 +5,12 @@
 package clientserverdemo;
 
 
-import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import javax.swing.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *  This class represents a client that sends messages to its own server
@@ -16,48 +18,45 @@ import javax.swing.*;
  * @author Yasser Jaffal
  */
 
-public class SendingClient implements ActionListener {
+public class SendingClient {
 
     protected int port;
     protected DatagramSocket serverSocket;
-    protected JTextField inputField;
     protected String sendGroup;
-    protected ClientManager manager;
+    protected ClientEngine manager;
     protected String name;
     protected Message clientMessage;
     protected DatagramPacket toServer = null;
-    protected byte[] buffer = new byte[OutgoingServer.BUFFER_SIZE];
+    protected final byte[] buffer = new byte[OutgoingServer.BUFFER_SIZE];
+    private final ByteBuffer out = ByteBuffer.wrap(buffer);
+    private SharedTransport transport;
+    private static final LongAdder MESSAGES = Metrics.counter("client.messages");
+    private static final LongAdder DATAGRAMS = Metrics.counter("client.datagrams");
 
    /**
     * Constructor
     * @param port communication port between this client and its server
     * @param name the name of this client (also applies to its server), must be unique
     * @param sendGroup IP address through which server and client communicate
-    * @param manager reference to ClientManager object from which this client receives commands to send messages
+    * @param manager reference to ClientEngine object from which this client receives commands to send messages
     */
-    public SendingClient(int port, String name, String sendGroup, ClientManager manager) {
+    public SendingClient(int port, String name, String sendGroup, ClientEngine manager) {
         this.name = name;
         this.manager = manager;
         this.port = port;
         this.sendGroup = sendGroup;
-        inputField = manager.getInputField();
 
         try {
             serverSocket = new DatagramSocket();
             try {
                 toServer = new DatagramPacket(buffer, buffer.length,
-                        InetAddress.getByName(sendGroup), port);
+                        new InetSocketAddress(InetAddress.getByName(sendGroup), port));
 
-                String initMessage = "";
                 clientMessage = new Message(getName(),
                         Message.ALL,
                         Message.SYNC,
                         Message.COMMAND);
-                initMessage = clientMessage.toString();
-                buffer = initMessage.getBytes();
-                toServer.setData(buffer, 0, buffer.length);
-                System.out.println(getName() + "-->" + initMessage);
-                serverSocket.send(toServer);
+                sendMessage(clientMessage);
 
             } catch (UnknownHostException err) {
                 System.err.println(err.getMessage());
@@ -70,6 +69,29 @@ public class SendingClient implements ActionListener {
         }
     }
 
+    /**
+     * Constructor of a client that sends through a transport shared with
+     * other clients of this process instead of its own socket
+     * @param transport the shared transport
+     * @param name the name of this client, must be unique
+     * @param manager reference to ClientEngine object from which this client receives commands to send messages
+     */
+    public SendingClient(SharedTransport transport, String name, ClientEngine manager) {
+        this.name = name;
+        this.manager = manager;
+        this.transport = transport;
+        try {
+            clientMessage = new Message(getName(),
+                    Message.ALL,
+                    Message.SYNC,
+                    Message.COMMAND);
+            sendMessage(clientMessage);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+
     /**
      * @return name of this client
      */
@@ -78,54 +100,94 @@ public class SendingClient implements ActionListener {
     }
 
     /**
-     * @param inField reference to JTextField object where user types messages
+     * sends Message to the server for the first time, data messages are
+     * registered as missed by all known peers until they acknowledge them.
+     * Synchronized since messages are sent from the GUI, the receiving
+     * client and the retransmission scheduler. The buffer and packet are
+     * reused by every send under this lock
+     * @param m a Message object containing message to send
+     * @throws IOException if error occures while sending message to server
      */
-    public void setInputField(JTextField inField) {
-        this.inputField = inField;
+    synchronized void sendMessage(Message m) throws IOException {
+        send(m, null, true);
     }
 
     /**
-     * sends Message to the server
+     * sends a missed message again, it is not registered again since peers
+     * that acknowledged it in the meantime would never acknowledge it twice
      * @param m a Message object containing message to send
+     * @param skip indexes of fragments that should not be sent since the
+     * destination already has them, null to send all fragments
      * @throws IOException if error occures while sending message to server
      */
-    void sendMessage(Message m) throws IOException {
-        String msg = m.toString();
+    synchronized void resendMessage(Message m, BitSet skip) throws IOException {
+        send(m, skip, false);
+    }
 
-        buffer = msg.getBytes("Windows-1256");
-        toServer = new DatagramPacket(buffer, buffer.length,
-                InetAddress.getByName(sendGroup), port);
-        if (m.getType() == Message.DATA) {
+    /**
+     * utility method to send Message to the server, messages too long to fit
+     * in one datagram are split into fragments (binary encoding only)
+     */
+    private void send(Message m, BitSet skip, boolean first) throws IOException {
+        out.clear();
+        boolean fits = true;
+        try {
+            MessageCodec.encode(m, out);
+        } catch (BufferOverflowException err) {
+            if (MessageCodec.isTextMode()) {
+                throw new IOException("message " + m.getID() + " is too long");
+            }
+            fits = false;
+        }
+        if (first && m.getType() == Message.DATA) {
             manager.mManager.addMessage(m);
         }
 
-        System.out.println(getName() + "-->" + m);
-        serverSocket.send(toServer);
+        Log.trace(getName(), "--> ", m);
+        MESSAGES.increment();
+        if (fits) {
+            transmit();
+        } else {
+            sendFragments(m, skip);
+        }
     }
 
     /**
-     * handles action (usually from a ClientManager object) to send message to server
-     * @param e
+     * utility method to send a message as several fragments
      */
-    public void actionPerformed(ActionEvent e) {
-
-        if (inputField.getText().trim().length() == 0) {
-            return;
+    private void sendFragments(Message m, BitSet skip) throws IOException {
+        byte[] source = MessageCodec.utf8(m.getSource());
+        byte[] dest = MessageCodec.utf8(m.getDestination());
+        byte[] content = MessageCodec.utf8(m.getContent());
+        int slice = OutgoingServer.BUFFER_SIZE - MessageCodec.HEADER_SIZE -
+                MessageCodec.FRAGMENT_HEADER_SIZE - source.length - dest.length;
+        if (slice <= 0) {
+            throw new IOException("message " + m.getID() + " is too long");
         }
-        try {
-
-            String input = inputField.getText();
-            
-            inputField.setText("");
-            clientMessage = new Message(getName(), Message.ALL, input, Message.DATA);
-            clientMessage.setID(manager.getNextMessageID());
-            //JOptionPane.showMessageDialog(null, input);
-            //JOptionPane.showMessageDialog(null, clientMessage.getContent());
-            sendMessage(clientMessage);
+        int count = (content.length + slice - 1) / slice;
+        for (int i = 0; i < count; i++) {
+            if (skip != null && skip.get(i)) {
+                continue;
+            }
+            int offset = i * slice;
+            out.clear();
+            MessageCodec.encodeFragment(m, source, dest, content, i, count,
+                    offset, Math.min(slice, content.length - offset), out);
+            transmit();
+        }
+    }
 
-        } catch (IOException err) {
-            System.err.println(err.getMessage());
-            err.printStackTrace();
+    /**
+     * utility method to send the encoded datagram to the server
+     */
+    private void transmit() throws IOException {
+        DATAGRAMS.increment();
+        if (transport != null) {
+            out.flip();
+            transport.send(out);
+        } else {
+            toServer.setLength(out.position());
+            serverSocket.send(toServer);
         }
     }
 
@@ -133,6 +195,8 @@ public class SendingClient implements ActionListener {
      * disposes this object
      */
     public void dispose() {
-        serverSocket.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
     }
 }
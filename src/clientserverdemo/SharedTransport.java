@@ -0,0 +1,326 @@
+package clientserverdemo;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single pair of servers shared by all clients of this process that use
+ * the same IP group. One OutgoingServer sends messages of all clients to the
+ * multicast group, and the transport itself listens on the group in place
+ * of an IncomingServer and ReceivingClient per client: received messages are
+ * checked, reassembled and decoded once, then handed to the client they are
+ * addressed to (every client for messages addressed to ALL). A client is
+ * only an entry in the transport's table, it has no threads, sockets or
+ * ports of its own. Clients use the shared transport when the system property
+ * <B>clientserverdemo.sharedTransport</B> is set, their messages are
+ * dispatched on a pool of <B>clientserverdemo.dispatchThreads</B> threads
+ * (defaults to the number of available processors), or on virtual threads
+ * (see Threads)
+ * @author Yasser Jaffal
+ */
+public class SharedTransport implements EventLoop.DatagramHandler {
+
+    public static final boolean ENABLED =
+            Boolean.getBoolean("clientserverdemo.sharedTransport");
+    private static final HashMap<String, SharedTransport> shared =
+            new HashMap<String, SharedTransport>();
+    private static ExecutorService executor;
+    private static final byte[] ALL_BYTES = MessageCodec.utf8(Message.ALL);
+    private final ConcurrentHashMap<String, ClientEngine> endpoints =
+            new ConcurrentHashMap<String, ClientEngine>();
+    private OutgoingServer outgoing;
+    private DatagramChannel listeningChannel;
+    private DatagramChannel sendingChannel;
+    private InetSocketAddress serverAddress;
+    private MembershipKey membership;
+    private DuplicateFilter archive;
+    private Reassembler reassembler;
+    private boolean expiryScheduled;
+    private Runnable expiryTask;
+    private EventLoop loop;
+    private BufferPool pool;
+    private NameCache names;
+    private static final LongAdder RECEIVED = Metrics.counter("transport.received");
+    private static final LongAdder DELIVERED = Metrics.counter("transport.delivered");
+    private static final LongAdder STALE = Metrics.counter("transport.stale");
+    private static final LongAdder MISADDRESSED =
+            Metrics.counter("transport.misaddressed");
+    private static final LongAdder DUPLICATE = Metrics.counter("transport.duplicate");
+    private static final LongAdder MALFORMED = Metrics.counter("transport.malformed");
+    private static final LongAdder INBOX_FULL = Metrics.counter("transport.inboxFull");
+
+    /**
+     * Constructor, starts the shared servers
+     * @param group IP group to be used for client-server communications
+     */
+    private SharedTransport(String group) {
+        loop = EventLoop.getShared();
+        pool = BufferPool.getShared();
+        names = new NameCache(1024);
+        archive = new DuplicateFilter();
+        Metrics.addSource(archive.metrics("transport.dedup"));
+        reassembler = new Reassembler();
+        expiryTask = new Runnable() {
+
+            public void run() {
+                expiryScheduled = false;
+                expire();
+            }
+        };
+        int port = ClientEngine.getNextPort(ClientEngine.BASE_PORT - 1);
+        outgoing = new OutgoingServer(port, 1024, "shared", group, "225.0.0.1");
+        try {
+            listeningChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            listeningChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            listeningChannel.bind(new InetSocketAddress(1024));
+            membership = listeningChannel.join(InetAddress.getByName("225.0.0.1"),
+                    IncomingServer.getMulticastInterface());
+            sendingChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            serverAddress = new InetSocketAddress(
+                    InetAddress.getByName(group), port);
+            outgoing.start();
+            loop.register(listeningChannel, this);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param group IP group to be used for client-server communications
+     * @return the transport shared by all clients of this process that use
+     * the passed group
+     */
+    public static synchronized SharedTransport getShared(String group) {
+        SharedTransport transport = shared.get(group);
+        if (transport == null) {
+            transport = new SharedTransport(group);
+            shared.put(group, transport);
+        }
+        return transport;
+    }
+
+    /**
+     * @return executor that dispatches received messages of all clients
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Threads.newExecutor("dispatcher",
+                    Integer.getInteger("clientserverdemo.dispatchThreads",
+                    Runtime.getRuntime().availableProcessors()));
+        }
+        return executor;
+    }
+
+    /**
+     * starts delivering messages addressed to the passed client
+     * @param endpoint the client
+     */
+    public void register(ClientEngine endpoint) {
+        endpoints.put(endpoint.getName(), endpoint);
+    }
+
+    /**
+     * stops delivering messages to the passed client, the shared servers
+     * keep running for other clients
+     * @param endpoint the client
+     */
+    public void unregister(ClientEngine endpoint) {
+        endpoints.remove(endpoint.getName(), endpoint);
+    }
+
+    /**
+     * @return number of registered clients
+     */
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * sends an encoded message to the shared outgoing server, may be called
+     * by many clients at once
+     * @param datagram buffer holding the encoded message
+     * @throws IOException if error occures while sending
+     */
+    public void send(ByteBuffer datagram) throws IOException {
+        sendingChannel.send(datagram, serverAddress);
+    }
+
+    /**
+     * Called by the event loop whenever messages are waiting on the group:<BR>
+     * This method receives the waiting messages and hands each one to the
+     * clients it is addressed to. Messages are dropped if they are outdated,
+     * addressed to no registered client or duplicated, the same way
+     * IncomingServer drops them
+     * @param channel the listening channel
+     * @throws IOException if error occures while receiving
+     */
+    public void datagramReady(DatagramChannel channel) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+
+        try {
+            while (channel.receive(buffer) != null) {
+                buffer.flip();
+                pool.messageReceived();
+                if (MessageCodec.isBatch(buffer)) {
+                    receiveBatch(buffer);
+                } else if (MessageCodec.isBinary(buffer)) {
+                    receiveBinary(buffer);
+                } else {
+                    RECEIVED.increment();
+                    Message msg = MessageCodec.decode(buffer);
+                    if (msg == null) {
+                        MALFORMED.increment();
+                    }
+                    deliver(msg);
+                }
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * receives every message of a batch, a malformed message ends the batch
+     * @param buffer buffer holding a batch of binary messages
+     */
+    private void receiveBatch(ByteBuffer buffer) {
+        int end = buffer.limit();
+        int next = buffer.position() + MessageCodec.BATCH_HEADER_SIZE;
+        while (next < end) {
+            buffer.limit(end).position(next);
+            if (!MessageCodec.isBinary(buffer)) {
+                break;
+            }
+            next += MessageCodec.messageLength(buffer);
+            buffer.limit(next);
+            receiveBinary(buffer);
+        }
+    }
+
+    /**
+     * checks a binary message in place and delivers it if it should be
+     * delivered, fragments are reassembled first
+     * @param buffer buffer holding one binary message
+     */
+    private void receiveBinary(ByteBuffer buffer) {
+        RECEIVED.increment();
+        if (MessageCodec.peekSendingDate(buffer) + 3000 < Clock.millis()) {
+            STALE.increment();
+            return;
+        }
+        if (!MessageCodec.destinationEquals(buffer, ALL_BYTES) &&
+                !endpoints.containsKey(names.get(buffer,
+                MessageCodec.destinationOffset(buffer),
+                MessageCodec.destinationLength(buffer)))) {
+            MISADDRESSED.increment();
+            return;
+        }
+        int type = MessageCodec.peekType(buffer);
+        if (MessageCodec.isFragment(buffer)) {
+            if (type == Message.DATA && archive.contains(key(names.get(buffer,
+                    MessageCodec.sourceOffset(buffer),
+                    MessageCodec.sourceLength(buffer)), names.get(buffer,
+                    MessageCodec.destinationOffset(buffer),
+                    MessageCodec.destinationLength(buffer))),
+                    MessageCodec.peekID(buffer))) {
+                DUPLICATE.increment();
+                return;
+            }
+            Message msg = reassembler.add(buffer, Clock.millis());
+            if (!reassembler.isEmpty() && !expiryScheduled) {
+                expiryScheduled = true;
+                loop.schedule(listeningChannel, expiryTask,
+                        TimeUnit.MILLISECONDS.toNanos(Reassembler.REPORT_DELAY));
+            }
+            deliver(msg);
+        } else {
+            deliver(MessageCodec.decodeBinary(buffer,
+                    type != Message.ACKNOWLEDGE && type != Message.CUMULATIVE_ACK));
+        }
+    }
+
+    /**
+     * hands a decoded message to the clients it is addressed to, unless it
+     * is outdated or duplicated. A data message dropped by a full client is
+     * forgotten by the duplicate filter so its resend is accepted
+     * @param msg decoded message, could be null
+     */
+    private void deliver(Message msg) {
+        if (msg == null) {
+            return;
+        } else if (msg.getSendingDate() + 3000 < Clock.millis()) {
+            STALE.increment();
+            return;
+        } else if (msg.getType() == Message.DATA &&
+                !archive.add(key(msg.getSource(), msg.getDestination()),
+                msg.getID())) {
+            DUPLICATE.increment();
+            return;
+        }
+        boolean lost = false;
+        if (msg.getDestination().equals(Message.ALL)) {
+            for (ClientEngine endpoint : endpoints.values()) {
+                lost |= !endpoint.deliver(msg);
+            }
+        } else {
+            ClientEngine endpoint = endpoints.get(msg.getDestination());
+            if (endpoint == null) {
+                MISADDRESSED.increment();
+                return;
+            }
+            lost = !endpoint.deliver(msg);
+        }
+        DELIVERED.increment();
+        if (lost) {
+            INBOX_FULL.increment();
+            if (msg.getType() == Message.DATA) {
+                archive.remove(key(msg.getSource(), msg.getDestination()),
+                        msg.getID());
+            }
+        }
+    }
+
+    /**
+     * utility method to find the duplicate filter key of a message, messages
+     * resent to a single client are filtered apart from the broadcast they
+     * resend, which other clients already accepted
+     */
+    private static String key(String source, String destination) {
+        return destination.equals(Message.ALL) ? source
+                : source + ">" + destination;
+    }
+
+    /**
+     * tells the sources of incomplete messages which fragments were received,
+     * on behalf of every client the message is addressed to
+     */
+    private void expire() {
+        for (Reassembler.Partial p : reassembler.expire(Clock.millis())) {
+            if (p.dest.equals(Message.ALL)) {
+                for (ClientEngine endpoint : endpoints.values()) {
+                    if (!endpoint.getName().equals(p.source)) {
+                        endpoint.reportFragments(p.source, p.id, p.fragments);
+                    }
+                }
+            } else {
+                ClientEngine endpoint = endpoints.get(p.dest);
+                if (endpoint != null) {
+                    endpoint.reportFragments(p.source, p.id, p.fragments);
+                }
+            }
+        }
+        if (!reassembler.isEmpty()) {
+            expiryScheduled = true;
+            loop.schedule(listeningChannel, expiryTask,
+                    TimeUnit.MILLISECONDS.toNanos(Reassembler.REPORT_DELAY));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package clientserverdemo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that run blocking loops of clients. The kind of thread
+ * is read from the system property <B>clientserverdemo.threads</B>:<BR>
+ * <B>platform</B> (default) runs each loop on its own daemon thread,<BR>
+ * <B>virtual</B> runs each loop on a virtual thread, so blocking costs no
+ * platform thread and a process could run many thousands of clients.<BR>
+ * Executors shared by all clients (for short tasks, or scheduled ones such as
+ * acknowledgements, retransmissions and journal syncs) use the same kind of
+ * thread.<BR>
+ * Virtual threads are looked up at run time, on a Java runtime without them
+ * platform threads are used and a warning is printed
+ * @author Yasser Jaffal
+ */
+final class Threads {
+
+    public static final boolean VIRTUAL;
+    private static Method ofVirtual, name, unstarted, perTaskExecutor;
+
+    static {
+        boolean virtual = "virtual".equalsIgnoreCase(
+                System.getProperty("clientserverdemo.threads", "platform"));
+        if (virtual) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                perTaskExecutor = Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor");
+            } catch (Exception err) {
+                System.err.println("WARNING: virtual threads are not " +
+                        "available, using platform threads");
+                virtual = false;
+            }
+        }
+        VIRTUAL = virtual;
+    }
+
+    private Threads() {
+    }
+
+    /**
+     * creates a daemon thread of the configured kind, the thread is not
+     * started
+     * @param threadName name of the thread
+     * @param task task the thread runs
+     * @return the new thread
+     */
+    public static Thread newThread(String threadName, Runnable task) {
+        if (VIRTUAL) {
+            try {
+                return (Thread) unstarted.invoke(
+                        name.invoke(ofVirtual.invoke(null), threadName), task);
+            } catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+        Thread t = new Thread(task, threadName);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * creates an executor for short tasks: a virtual thread per task, or a
+     * fixed pool of daemon platform threads
+     * @param threadName name of pool threads
+     * @param threads number of pool threads, ignored for virtual threads
+     * @return the new executor
+     */
+    public static ExecutorService newExecutor(final String threadName,
+            int threads) {
+        if (VIRTUAL) {
+            try {
+                return (ExecutorService) perTaskExecutor.invoke(null);
+            } catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+        return Executors.newFixedThreadPool(threads, factory(threadName));
+    }
+
+    /**
+     * creates an executor for scheduled tasks, backed by a fixed pool of
+     * threads of the configured kind
+     * @param threadName name of pool threads
+     * @param threads number of pool threads
+     * @return the new executor
+     */
+    public static ScheduledExecutorService newScheduledExecutor(String threadName,
+            int threads) {
+        return Executors.newScheduledThreadPool(threads, factory(threadName));
+    }
+
+    /**
+     * utility method to create pool threads of the configured kind
+     */
+    private static ThreadFactory factory(final String threadName) {
+        return new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                return Threads.newThread(threadName, r);
+            }
+        };
+    }
+}
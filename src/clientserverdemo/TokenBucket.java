@@ -0,0 +1,63 @@
+package clientserverdemo;
+
+/**
+ * Token bucket rate limiter used to pace sending, tokens are refilled
+ * continuously at a fixed rate up to the bucket capacity
+ * @author Yasser Jaffal
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     * @param ratePerSecond number of tokens added each second
+     * @param capacity maximum number of tokens (largest allowed burst)
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid rate or capacity");
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        tokens = capacity;
+        lastRefill = Clock.nanos();
+    }
+
+    /**
+     * takes a token if one is available
+     * @return true if a token has been taken, false if bucket is empty
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return nanoseconds to wait until next token is available, 0 if a token
+     * is available now
+     */
+    public synchronized long nanosUntilAvailable() {
+        refill();
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * utility method to add the tokens earned since last refill
+     */
+    private void refill() {
+        long now = Clock.nanos();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
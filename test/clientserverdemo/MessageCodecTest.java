@@ -0,0 +1,361 @@
+package clientserverdemo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of MessageCodec: every message type is encoded and decoded back as a
+ * plain binary message, as fragments put together by a Reassembler, inside a
+ * batch and in text format, then malformed datagrams (random bytes,
+ * truncated and corrupted encodings) are decoded to make sure decoding
+ * returns null instead of throwing. Runs without any test framework, exits
+ * with status 1 if a check fails:<BR>
+ * <B>java clientserverdemo.MessageCodecTest [seed]</B>
+ * @author Yasser Jaffal
+ */
+public class MessageCodecTest {
+
+    private static final int[] TYPES = {Message.COMMAND, Message.ACKNOWLEDGE,
+        Message.DATA, Message.CUMULATIVE_ACK};
+    private static final int FUZZ_ROUNDS = 200000;
+    private static int checks;
+
+    /**
+     * main method
+     * @param args optional seed of the fuzz loop
+     */
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        try {
+            binaryRoundTrip();
+            fragmentRoundTrip();
+            batchRoundTrip();
+            textRoundTrip();
+            truncated();
+            fuzz(new Random(seed));
+        } catch (Throwable err) {
+            System.err.println("seed " + seed);
+            err.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    /**
+     * every type, with empty, ASCII and non ASCII content, in heap and
+     * direct buffers, and a content-less cumulative acknowledgement
+     */
+    private static void binaryRoundTrip() {
+        for (int type : TYPES) {
+            for (String content : new String[]{"", "hello", "\u0645\u0631\u062d\u0628\u0627 \u00e9"}) {
+                Message msg = message(7, "A", "B", content, type);
+                for (boolean direct : new boolean[]{false, true}) {
+                    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(1024)
+                            : ByteBuffer.allocate(1024);
+                    MessageCodec.encodeBinary(msg, buffer);
+                    buffer.flip();
+                    check(MessageCodec.isBinary(buffer), "binary message not recognized");
+                    check(!MessageCodec.isFragment(buffer), "plain message taken as fragment");
+                    check(MessageCodec.messageLength(buffer) == buffer.remaining(),
+                            "wrong message length");
+                    check(MessageCodec.peekID(buffer) == 7, "wrong peeked ID");
+                    check(MessageCodec.peekType(buffer) == type, "wrong peeked type");
+                    check(MessageCodec.destinationEquals(buffer, MessageCodec.utf8("B")),
+                            "wrong peeked destination");
+                    assertSame(msg, MessageCodec.decode(buffer));
+                    check(!buffer.hasRemaining(), "message not fully read");
+                }
+            }
+        }
+        Message ack = CumulativeAck.create("A", "B", 5, 9, 0x8000000000000005L, 1000);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MessageCodec.encodeBinary(ack, buffer);
+        buffer.flip();
+        check(MessageCodec.isBinary(buffer) && MessageCodec.messageLength(buffer) ==
+                buffer.remaining(), "cumulative acknowledgement not recognized");
+        check(MessageCodec.contentLength(buffer) == 0,
+                "cumulative acknowledgement has content");
+        assertSame(ack, MessageCodec.decodeBinary(buffer, false));
+        check(!buffer.hasRemaining(), "cumulative acknowledgement not fully read");
+
+        Message msg = message(1, "A", "B", "skipped", Message.ACKNOWLEDGE);
+        buffer = ByteBuffer.allocate(256);
+        MessageCodec.encodeBinary(msg, buffer);
+        buffer.flip();
+        Message decoded = MessageCodec.decodeBinary(buffer, false);
+        check(decoded != null && decoded.getContent() == null, "content not skipped");
+        check(!buffer.hasRemaining(), "skipped content not consumed");
+    }
+
+    /**
+     * a long message is split the way SendingClient does it, fragments are
+     * delivered out of order with duplicates and must complete it once
+     */
+    private static void fragmentRoundTrip() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 5 * OutgoingServer.BUFFER_SIZE; i++) {
+            text.append(i).append(i % 3 == 0 ? " \u0633\u0644\u0627\u0645 " : " ");
+        }
+        Message msg = message(42, "A", Message.ALL, text.toString(), Message.DATA);
+        List<ByteBuffer> fragments = fragments(msg);
+        check(fragments.size() > 1, "message not fragmented");
+        fragments.add(fragments.get(0));
+        Collections.shuffle(fragments, new Random(1));
+
+        Reassembler reassembler = new Reassembler();
+        Message whole = null;
+        int completions = 0;
+        for (ByteBuffer fragment : fragments) {
+            check(MessageCodec.isBinary(fragment), "fragment not recognized");
+            check(MessageCodec.isFragment(fragment), "fragment taken as plain message");
+            check(MessageCodec.decode(fragment.duplicate()) == null,
+                    "fragment decoded as a whole message");
+            Message m = reassembler.add(fragment, 0);
+            if (m != null) {
+                whole = m;
+                completions++;
+            }
+        }
+        check(completions == 1, "message completed " + completions + " times");
+        assertSame(msg, whole);
+        check(reassembler.isEmpty() && reassembler.getBufferedBytes() == 0,
+                "reassembler not empty");
+
+        // a fragment resent to a single client completes the broadcast
+        reassembler = new Reassembler();
+        fragments = fragments(msg);
+        for (int i = 1; i < fragments.size(); i++) {
+            check(reassembler.add(fragments.get(i), 0) == null, "completed too early");
+        }
+        Message resent = message(42, "A", "B", text.toString(), Message.DATA);
+        whole = reassembler.add(fragments(resent).get(0), 0);
+        check(whole != null && whole.getContent().equals(msg.getContent()),
+                "resent fragment did not complete the message");
+
+        // a forged header claiming more fragments than content bytes must not
+        // reserve anything
+        reassembler = new Reassembler();
+        byte[] content = MessageCodec.utf8("forged");
+        for (int count : new int[]{content.length + 1, Integer.MAX_VALUE}) {
+            ByteBuffer forged = ByteBuffer.allocate(256);
+            MessageCodec.encodeFragment(msg, MessageCodec.utf8("A"),
+                    MessageCodec.utf8(Message.ALL), content, 0, count, 0, 1, forged);
+            forged.flip();
+            check(reassembler.add(forged, 0) == null && reassembler.isEmpty() &&
+                    reassembler.getBufferedBytes() == 0,
+                    "forged fragment count " + count + " accepted");
+        }
+
+        BitSet set = new BitSet();
+        set.set(0);
+        set.set(3, 7);
+        set.set(100);
+        check(Reassembler.decodeFragments(Reassembler.encodeFragments(set)).equals(set),
+                "fragment set round trip failed");
+    }
+
+    /**
+     * messages of every type packed in one batch, read back the way
+     * IncomingServer walks a batch
+     */
+    private static void batchRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        MessageCodec.startBatch(buffer);
+        List<Message> sent = new ArrayList<Message>();
+        for (int i = 0; i < 20; i++) {
+            Message msg = message(i, "SRC" + i, "DST", "content " + i,
+                    TYPES[i % TYPES.length]);
+            MessageCodec.encodeBinary(msg, buffer);
+            sent.add(msg);
+        }
+        buffer.flip();
+        check(MessageCodec.isBatch(buffer), "batch not recognized");
+        check(!MessageCodec.isBinary(buffer), "batch taken as single message");
+        int end = buffer.limit();
+        int next = buffer.position() + MessageCodec.BATCH_HEADER_SIZE;
+        int n = 0;
+        while (next < end) {
+            buffer.limit(end).position(next);
+            check(MessageCodec.isBinary(buffer), "batched message " + n + " not recognized");
+            next += MessageCodec.messageLength(buffer);
+            buffer.limit(next);
+            assertSame(sent.get(n++), MessageCodec.decode(buffer));
+        }
+        check(n == sent.size(), "read " + n + " of " + sent.size() + " batched messages");
+    }
+
+    /**
+     * every type in the legacy text format, content may hold separators
+     */
+    private static void textRoundTrip() {
+        for (int type : TYPES) {
+            Message msg = type == Message.CUMULATIVE_ACK
+                    ? CumulativeAck.create("A", "B", 3, 9, -1L, 1000)
+                    : message(9, "A", "B", "a:b:c", type);
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            MessageCodec.encodeText(msg, buffer);
+            buffer.flip();
+            check(!MessageCodec.isBinary(buffer), "text taken as binary");
+            assertSame(msg, MessageCodec.decode(buffer));
+        }
+        for (String malformed : new String[]{"", "garbage", "1:2:3:A:B:DATA",
+                "x:2:3:A:B:DATA:c", "1:2:3:A:B:BOGUS:c", "1:y:3:A:B:DATA:c",
+                "1:2:3:A:B:CUMULATIVE_ACK:1", "1:2:3:A:B:CUMULATIVE_ACK:x;0"}) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes(malformed));
+            check(MessageCodec.decode(buffer) == null,
+                    "malformed text decoded: " + malformed);
+        }
+    }
+
+    /**
+     * every proper prefix of a binary message is rejected
+     */
+    private static void truncated() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        MessageCodec.encodeBinary(message(3, "A", "B", "truncated", Message.DATA), buffer);
+        buffer.flip();
+        for (int length = 1; length < buffer.limit(); length++) {
+            ByteBuffer prefix = buffer.duplicate();
+            prefix.limit(length);
+            check(!MessageCodec.isBinary(prefix), "prefix of " + length + " taken as binary");
+            check(MessageCodec.decode(prefix) == null, "prefix of " + length + " decoded");
+        }
+    }
+
+    /**
+     * random datagrams shorter than a header, and headers claiming more
+     * bytes than the datagram holds, must decode to null. Valid encodings
+     * with a random byte changed must never make decoding or reassembly
+     * throw, and whatever they decode to must have a valid type
+     */
+    private static void fuzz(Random random) {
+        ByteBuffer valid = ByteBuffer.allocate(256);
+        MessageCodec.encodeBinary(message(5, "A", "B", "fuzz", Message.DATA), valid);
+        valid.flip();
+        List<ByteBuffer> fragments = fragments(message(6, "A", "B",
+                new String(new char[3 * OutgoingServer.BUFFER_SIZE]).replace('\0', 'f'),
+                Message.DATA));
+        Reassembler reassembler = new Reassembler();
+        for (int round = 0; round < FUZZ_ROUNDS; round++) {
+            byte[] data;
+            boolean malformed = true;
+            switch (round % 4) {
+                case 0:
+                    data = new byte[random.nextInt(MessageCodec.HEADER_SIZE)];
+                    random.nextBytes(data);
+                    break;
+                case 1:
+                    data = new byte[MessageCodec.HEADER_SIZE + random.nextInt(64)];
+                    random.nextBytes(data);
+                    data[0] = MessageCodec.MAGIC;
+                    data[1] = (byte) (1 + random.nextInt(2));
+                    ByteBuffer.wrap(data).putInt(27, data.length -
+                            MessageCodec.HEADER_SIZE + 1 + random.nextInt(1 << 20));
+                    break;
+                case 2:
+                    data = copy(valid);
+                    data[random.nextInt(data.length)] = (byte) random.nextInt();
+                    malformed = false;
+                    break;
+                default:
+                    data = copy(fragments.get(random.nextInt(fragments.size())));
+                    data[random.nextInt(data.length)] = (byte) random.nextInt();
+                    malformed = false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            Message decoded;
+            try {
+                decoded = MessageCodec.decode(buffer.duplicate());
+                if (!malformed && MessageCodec.isBinary(buffer) &&
+                        MessageCodec.isFragment(buffer)) {
+                    reassembler.add(buffer, round);
+                    reassembler.expire(round);
+                }
+            } catch (RuntimeException err) {
+                throw new AssertionError("decoding " + hex(data) + " threw " + err);
+            }
+            if (malformed) {
+                check(decoded == null && !MessageCodec.isBinary(buffer),
+                        "malformed datagram accepted: " + hex(data));
+            } else if (decoded != null) {
+                check(Message.isValidType(decoded.getType()),
+                        "decoded invalid type from " + hex(data));
+            }
+        }
+    }
+
+    /**
+     * utility method to fragment a message the way SendingClient does
+     */
+    private static List<ByteBuffer> fragments(Message msg) {
+        byte[] source = MessageCodec.utf8(msg.getSource());
+        byte[] dest = MessageCodec.utf8(msg.getDestination());
+        byte[] content = MessageCodec.utf8(msg.getContent());
+        int slice = OutgoingServer.BUFFER_SIZE - MessageCodec.HEADER_SIZE -
+                MessageCodec.FRAGMENT_HEADER_SIZE - source.length - dest.length;
+        int count = (content.length + slice - 1) / slice;
+        List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer out = ByteBuffer.allocate(OutgoingServer.BUFFER_SIZE);
+            int offset = i * slice;
+            MessageCodec.encodeFragment(msg, source, dest, content, i, count,
+                    offset, Math.min(slice, content.length - offset), out);
+            out.flip();
+            result.add(out);
+        }
+        return result;
+    }
+
+    private static Message message(int id, String source, String dest,
+            String content, int type) {
+        return new Message(id, 1000L + id, 2000L + id, source, dest, content, type);
+    }
+
+    private static void assertSame(Message expected, Message actual) {
+        check(actual != null, "message " + expected + " not decoded");
+        check(actual.getID() == expected.getID() &&
+                actual.getCreationDate() == expected.getCreationDate() &&
+                actual.getSendingDate() == expected.getSendingDate() &&
+                actual.getType() == expected.getType() &&
+                actual.getSource().equals(expected.getSource()) &&
+                actual.getDestination().equals(expected.getDestination()) &&
+                (actual.getContent() == null ? expected.getContent() == null
+                : actual.getContent().equals(expected.getContent())) &&
+                actual.getAckFrom() == expected.getAckFrom() &&
+                actual.getAckBitmap() == expected.getAckBitmap(),
+                "expected " + expected + " but decoded " + actual);
+    }
+
+    private static void check(boolean condition, String failure) {
+        checks++;
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    private static byte[] copy(ByteBuffer src) {
+        byte[] data = new byte[src.remaining()];
+        src.duplicate().get(data);
+        return data;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes(MessageCodec.TEXT_ENCODING);
+        } catch (java.io.UnsupportedEncodingException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : data) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,272 @@
+package clientserverdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress test of MessageManager. Several threads take IDs and add messages
+ * while other threads acknowledge them from every peer, one by one, as
+ * ranges and as bitmaps, and a reader keeps selecting missed messages and
+ * taking snapshots. Afterwards every ID must have been handed out exactly
+ * once, a peer that acknowledged nothing must still miss every message,
+ * and once it acknowledges them too nothing may be left pending. That peer
+ * misses every message, so at most <B>clientserverdemo.ackWindow</B>
+ * messages are sent. Runs without any test framework, exits with status 1
+ * if a check fails:<BR>
+ * <B>java clientserverdemo.MessageManagerStressTest [messages] [seed]</B>
+ * @author Yasser Jaffal
+ */
+public class MessageManagerStressTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int PEERS = 4;
+    private static final int ACKERS_PER_PEER = 2;
+    private static final String LATE = "LATE";
+    private static final int BACKLOG = AckWindow.MAX_SIZE / 4;
+    private static int checks;
+
+    /**
+     * main method
+     * @param args optional number of messages and seed
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int total = Math.min(AckWindow.MAX_SIZE, args.length > 0
+                ? Integer.parseInt(args[0]) : AckWindow.MAX_SIZE);
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        try {
+            run(total, seed);
+        } catch (Throwable err) {
+            System.err.println("seed " + seed);
+            err.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private static void run(final int total, long seed) throws Throwable {
+        final MessageManager manager = new MessageManager();
+        final List<ConcurrentLinkedQueue<Integer>> queues =
+                new ArrayList<ConcurrentLinkedQueue<Integer>>();
+        for (int p = 0; p < PEERS; p++) {
+            manager.addPeer("PEER" + p);
+            queues.add(new ConcurrentLinkedQueue<Integer>());
+        }
+        manager.addPeer(LATE);
+        final long evicted = Metrics.counter("ackWindow.evicted").sum();
+        final BitSet taken = new BitSet(total);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>();
+        List<Thread> others = new ArrayList<Thread>();
+
+        for (int i = 0; i < PRODUCERS; i++) {
+            producers.add(new Worker("producer" + i, start, failure) {
+
+                void work() {
+                    while (added.get() < total) {
+                        if (queues.get(0).size() > BACKLOG) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int id = manager.getNextMessageID();
+                        if (id >= total) {
+                            return;
+                        }
+                        synchronized (taken) {
+                            if (taken.get(id)) {
+                                duplicates.incrementAndGet();
+                            }
+                            taken.set(id);
+                        }
+                        started.incrementAndGet();
+                        manager.addMessage(new Message(id, id, id, "SOURCE",
+                                Message.ALL, "message " + id, Message.DATA));
+                        added.incrementAndGet();
+                        for (ConcurrentLinkedQueue<Integer> queue : queues) {
+                            queue.add(id);
+                        }
+                    }
+                }
+            });
+        }
+        for (int p = 0; p < PEERS; p++) {
+            for (int a = 0; a < ACKERS_PER_PEER; a++) {
+                final String peer = "PEER" + p;
+                final ConcurrentLinkedQueue<Integer> queue = queues.get(p);
+                final Random random = new Random(seed + p * 31 + a);
+                others.add(new Worker("acker" + p + "." + a, start, failure) {
+
+                    void work() {
+                        int[] ids = new int[64];
+                        while (true) {
+                            int n = 0;
+                            int wanted = 1 + random.nextInt(ids.length);
+                            Integer id;
+                            while (n < wanted && (id = queue.poll()) != null) {
+                                ids[n++] = id;
+                            }
+                            if (n == 0) {
+                                if (!producing.get() && queue.isEmpty()) {
+                                    return;
+                                }
+                                Thread.yield();
+                                continue;
+                            }
+                            acknowledge(manager, peer, ids, n, random.nextInt(3));
+                        }
+                    }
+                });
+            }
+        }
+        others.add(new Worker("reader", start, failure) {
+
+            void work() throws IOException {
+                while (producing.get()) {
+                    int pending = manager.getPendingCount();
+                    check(pending <= started.get(), "more pending than sent");
+                    Message[] missed = manager.getMissedMessages("PEER0");
+                    for (int i = 1; i < missed.length; i++) {
+                        check(missed[i - 1].getID() < missed[i].getID(),
+                                "missed messages out of order");
+                    }
+                    ObjectOutputStream out = new ObjectOutputStream(
+                            new ByteArrayOutputStream());
+                    out.writeObject(manager);
+                    out.close();
+                }
+            }
+        });
+
+        for (Thread t : producers) {
+            t.start();
+        }
+        for (Thread t : others) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : producers) {
+            t.join();
+        }
+        producing.set(false);
+        for (Thread t : others) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        check(duplicates.get() == 0, duplicates.get() + " IDs handed out twice");
+        check(taken.cardinality() == total, "only " + taken.cardinality() +
+                " of " + total + " IDs handed out");
+        check(Metrics.counter("ackWindow.evicted").sum() == evicted,
+                "messages evicted from a window");
+        for (int p = 0; p < PEERS; p++) {
+            check(manager.getPendingCount("PEER" + p) == 0,
+                    "PEER" + p + " still misses " + manager.getPendingCount("PEER" + p));
+        }
+        check(manager.getPendingCount(LATE) == total, LATE + " misses " +
+                manager.getPendingCount(LATE) + " of " + total);
+        check(manager.getPendingCount() == total, "only " +
+                manager.getPendingCount() + " of " + total + " messages kept");
+        Message[] missed = manager.getMissedMessages(LATE);
+        check(missed.length == total, "only " + missed.length + " of " + total +
+                " missed messages found");
+        for (int i = 0; i < missed.length; i++) {
+            check(missed[i].getID() == i && missed[i].getContent().equals("message " + i),
+                    "wrong missed message " + missed[i]);
+        }
+
+        manager.acknowledgeRange(LATE, 0, total / 2);
+        for (int id = total / 2 + 1; id < total; id++) {
+            manager.acknowledge(LATE, id);
+        }
+        check(manager.getPendingCount(LATE) == 0, LATE + " still misses messages");
+        check(manager.getPendingCount() == 0,
+                manager.getPendingCount() + " messages left pending");
+        check(manager.getNextMessageID() >= total, "ID handed out twice");
+    }
+
+    /**
+     * utility method to acknowledge the passed IDs one by one, as a bitmap or
+     * as ranges of consecutive IDs
+     */
+    private static void acknowledge(MessageManager manager, String peer,
+            int[] ids, int n, int mode) {
+        if (mode == 0) {
+            for (int i = 0; i < n; i++) {
+                manager.acknowledge(peer, ids[i]);
+            }
+            return;
+        }
+        int[] sorted = java.util.Arrays.copyOf(ids, n);
+        java.util.Arrays.sort(sorted);
+        if (mode == 1 && sorted[n - 1] - sorted[0] < 64) {
+            long bitmap = 0;
+            for (int id : sorted) {
+                bitmap |= 1L << (id - sorted[0]);
+            }
+            manager.acknowledgeBitmap(peer, sorted[0], bitmap);
+            return;
+        }
+        int from = sorted[0];
+        for (int i = 1; i <= n; i++) {
+            if (i == n || sorted[i] != sorted[i - 1] + 1) {
+                manager.acknowledgeRange(peer, from, sorted[i - 1]);
+                if (i < n) {
+                    from = sorted[i];
+                }
+            }
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        synchronized (MessageManagerStressTest.class) {
+            checks++;
+        }
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    /**
+     * Thread that waits for the start signal and records its failure
+     */
+    private abstract static class Worker extends Thread {
+
+        private final CountDownLatch start;
+        private final AtomicReference<Throwable> failure;
+
+        Worker(String name, CountDownLatch start,
+                AtomicReference<Throwable> failure) {
+            super(name);
+            this.start = start;
+            this.failure = failure;
+        }
+
+        abstract void work() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+                work();
+            } catch (Throwable err) {
+                failure.compareAndSet(null, err);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package clientserverdemo;
+
+/**
+ * Tests of TokenBucket pacing driven by a Clock.Fake, so refills happen
+ * exactly when the test moves the clock instead of depending on how fast the
+ * machine runs. Runs without any test framework, exits with status 1 if a
+ * check fails:<BR>
+ * <B>java clientserverdemo.TokenBucketTest</B>
+ * @author Yasser Jaffal
+ */
+public class TokenBucketTest {
+
+    private static final int RATE = 100;
+    private static final int BURST = 10;
+    private static final long TOKEN_MILLIS = 1000 / RATE;
+    private static final long TOKEN_NANOS = TOKEN_MILLIS * 1000000L;
+    private static int checks;
+
+    /**
+     * main method
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        Clock.Fake clock = new Clock.Fake(1000);
+        Clock.set(clock);
+        try {
+            fakeClock(clock);
+            pacing(clock);
+        } catch (Throwable err) {
+            err.printStackTrace();
+            System.exit(1);
+        } finally {
+            Clock.set(Clock.SYSTEM);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    /**
+     * both times move together and only when told to
+     */
+    private static void fakeClock(Clock.Fake clock) {
+        long millis = Clock.millis();
+        long nanos = Clock.nanos();
+        check(Clock.millis() == millis && Clock.nanos() == nanos, "fake clock moved");
+        clock.advance(5);
+        check(Clock.millis() == millis + 5, "wall clock moved by " + (Clock.millis() - millis));
+        check(Clock.nanos() == nanos + 5000000L, "monotonic clock moved by " +
+                (Clock.nanos() - nanos));
+        Message msg = new Message("A", "B", "dated", Message.DATA);
+        check(msg.getCreationDate() == Clock.millis(), "message not dated by the clock");
+        clock.advance(7);
+        msg.resurrect();
+        check(msg.getSendingDate() == msg.getCreationDate() + 7, "message not resurrected");
+    }
+
+    /**
+     * a full bucket allows a burst, then tokens come back one at a time at
+     * the configured rate and never beyond the burst size
+     */
+    private static void pacing(Clock.Fake clock) {
+        TokenBucket bucket = new TokenBucket(RATE, BURST);
+        for (int i = 0; i < BURST; i++) {
+            check(bucket.tryAcquire(), "burst token " + i + " refused");
+        }
+        check(!bucket.tryAcquire(), "token taken beyond the burst");
+        check(bucket.nanosUntilAvailable() == TOKEN_NANOS,
+                "next token in " + bucket.nanosUntilAvailable() + " ns");
+
+        clock.advance(TOKEN_MILLIS / 2);
+        check(!bucket.tryAcquire(), "token taken before it was earned");
+        check(bucket.nanosUntilAvailable() == TOKEN_NANOS / 2,
+                "next token in " + bucket.nanosUntilAvailable() + " ns after half a token");
+        clock.advance(TOKEN_MILLIS / 2);
+        check(bucket.tryAcquire(), "earned token refused");
+        check(!bucket.tryAcquire(), "second token taken after one was earned");
+
+        clock.advance(1000);
+        int taken = 0;
+        while (bucket.tryAcquire()) {
+            taken++;
+        }
+        check(taken == BURST, taken + " tokens after a long pause, burst is " + BURST);
+
+        for (int i = 0; i < 100; i++) {
+            clock.advance(TOKEN_MILLIS);
+            check(bucket.tryAcquire() && !bucket.tryAcquire(),
+                    "paced token " + i + " not available exactly once");
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        checks++;
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+}